@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+//Lexes, parses, prints and interprets (K(K(K...))) of growing depth.
+//Compile and run it with the interpreter: javac -d out src/*.java bench/*.java && java -cp out NestingBenchmark
+class NestingBenchmark {
+    public static void main(String[] args) throws IOException, CloneNotSupportedException {
+        int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Path program = Files.createTempFile("nesting", ".txt");
+
+        System.out.println("depth\tlex ms\tparse ms\tprint ms\tinterpret ms\tns per level");
+        for (int depth = 1000; depth <= maxDepth; depth *= 10) {
+            Files.writeString(program, "inf\n? " + "(K".repeat(depth) + ")".repeat(depth));
+            CombinatorialLogicInterpreter.tokens.clear();
+            CombinatorialLogicInterpreter.seq_lexemes.setLength(0);
+
+            long start = System.nanoTime();
+            new Lexer().lex(program.toString());
+            long lexed = System.nanoTime();
+            CombinatorialLogicInterpreter interpreter = new CombinatorialLogicInterpreter();
+            interpreter.parse();
+            long parsed = System.nanoTime();
+            interpreter.printTree(interpreter.taskTokens);
+            long printed = System.nanoTime();
+            interpreter.interpret(interpreter.taskTokens);
+            long interpreted = System.nanoTime();
+
+            System.out.println(depth + "\t" + (lexed - start) / 1000000 + "\t" + (parsed - lexed) / 1000000 + "\t" +
+                    (printed - parsed) / 1000000 + "\t" + (interpreted - printed) / 1000000 + "\t" +
+                    (interpreted - start) / depth);
+        }
+
+        Files.delete(program);
+    }
+}
@@ -1,9 +1,55 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 class Position {
     String text;
@@ -38,6 +84,21 @@ class Position {
         this.index = p.getIndex();
     }
 
+    //Position of the index in the text, lines and positions are counted as next() counts them.
+    static Position at(String text, int index) {
+        Position p = new Position(text);
+        for (int i = 0; i < index; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                p.line++;
+                p.pos = 1;
+            } else if (!(c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') && !Character.isLowSurrogate(c))
+                p.pos++;
+        }
+        p.index = index;
+        return p;
+    }
+
     @Override
     public String toString() {
         return "(" + line + "," + pos + ")";
@@ -125,6 +186,7 @@ enum DomainTag {
     QUADRATE_COMP("quad"),
     QUESTION_SIGN("?"),
     EQUAL_SIGN("="),
+    EQUIVALENCE_SIGN("=="),
     K_COMB("K"),
     S_COMB("S"),
     I_COMB("I"),
@@ -142,6 +204,7 @@ abstract class Token implements Cloneable {
     DomainTag tag;
     Fragment coords;
     String attr;
+    String origin;
 
     Token(String attr, DomainTag tag, Position starting, Position following) {
         this.attr = attr;
@@ -153,6 +216,7 @@ abstract class Token implements Cloneable {
         this.tag = token.tag;
         this.coords = new Fragment(token.coords.starting, token.coords.following);
         this.attr = token.attr;
+        this.origin = token.origin;
     }
 
     abstract protected Token clone() throws CloneNotSupportedException;
@@ -204,12 +268,21 @@ class RightBracketToken extends Token implements Cloneable {
 }
 
 class UserCombinatorToken extends Token implements Cloneable {
+    AnonComb userComb;
+
     UserCombinatorToken(String attr, Position starting, Position following) {
         super(attr, DomainTag.USER_COMBINATOR, starting, following);
     }
 
     UserCombinatorToken(UserCombinatorToken token) {
         super(token);
+        userComb = token.userComb;
+    }
+
+    //A reference to the body of the rule, it is expanded when it is interpreted.
+    UserCombinatorToken(UserCombinatorToken token, AnonComb userComb) {
+        super(token);
+        this.userComb = userComb;
     }
 
     @Override
@@ -323,6 +396,26 @@ class EqualSignToken extends Token implements Cloneable {
     }
 }
 
+class EquivalenceSignToken extends Token implements Cloneable {
+    EquivalenceSignToken(Position starting, Position following) {
+        super("==", DomainTag.EQUIVALENCE_SIGN, starting, following);
+    }
+
+    EquivalenceSignToken(EquivalenceSignToken token) {
+        super(token);
+    }
+
+    @Override
+    protected Token clone() throws CloneNotSupportedException {
+        return new EquivalenceSignToken(this);
+    }
+
+    @Override
+    public String toString() {
+        return "EQUIVALENCE_SIGN " + super.toString();
+    }
+}
+
 class KCombToken extends Token implements Cloneable {
     KCombToken(Position starting, Position following) {
         super("K", DomainTag.K_COMB, starting, following);
@@ -427,23 +520,33 @@ class EndOfProgramToken extends Token implements Cloneable {
 class Scanner {
     public final String program;
     private final Compiler compiler;
+    private final int end;
     private Position cur;
 
     public Scanner(String program, Compiler compiler) {
+        this(program, compiler, new Position(program), program.length());
+    }
+
+    //Scans only the text from the starting position to the end index.
+    Scanner(String program, Compiler compiler, Position starting, int end) {
         this.compiler = compiler;
         this.program = program;
-        cur = new Position(program);
+        this.end = end;
+        cur = starting;
     }
 
     public Token nextToken() {
-        while (!cur.isEOF()) {
-            while (cur.isWhitespace())
+        while (cur.getIndex() < end) {
+            while (cur.getIndex() < end && cur.isWhitespace())
                 cur = cur.next();
+            if (cur.getIndex() >= end)
+                break;
             Token token = switch (cur.getCode()) {
                 case '(' -> new LeftBracketToken(cur, cur.next());
                 case ')' -> new RightBracketToken(cur, cur.next());
                 case '?' -> new QuestionSignToken(cur, cur.next());
-                case '=' -> new EqualSignToken(cur, cur.next());
+                case '=' -> cur.next().getCode() == '=' ? new EquivalenceSignToken(cur, cur.next().next()) :
+                        new EqualSignToken(cur, cur.next());
                 case 'i' -> new InfinityCompToken(cur, cur.next().next().next());
                 case 'e' -> new ExponentCompToken(cur, cur.next().next().next());
                 case 'q' -> new QuadrateCompToken(cur, cur.next().next().next().next());
@@ -506,6 +609,10 @@ class Compiler {
     public Scanner getScanner(String program) {
         return new Scanner(program, this);
     }
+
+    public Scanner getScanner(String program, int start, int end) {
+        return new Scanner(program, this, Position.at(program, start), end);
+    }
 }
 
 class Lexer {
@@ -526,13 +633,14 @@ class Lexer {
             } else if (token.tag == DomainTag.QUESTION_SIGN) {
                 isAfterQuestion = true;
                 CombinatorialLogicInterpreter.seq_lexemes.append("\n");
-            } else if (token.tag == DomainTag.EQUAL_SIGN) {
+            } else if (token.tag == DomainTag.EQUAL_SIGN || token.tag == DomainTag.EQUIVALENCE_SIGN) {
                 CombinatorialLogicInterpreter.seq_lexemes.append(" ");
             }
 
             CombinatorialLogicInterpreter.seq_lexemes.append(token.tag.text);
 
-            if (token.tag == DomainTag.QUESTION_SIGN || token.tag == DomainTag.EQUAL_SIGN) {
+            if (token.tag == DomainTag.QUESTION_SIGN || token.tag == DomainTag.EQUAL_SIGN ||
+                    token.tag == DomainTag.EQUIVALENCE_SIGN) {
                 CombinatorialLogicInterpreter.seq_lexemes.append(" ");
             }
 
@@ -547,21 +655,101 @@ class Lexer {
 
 class AnonComb extends Token implements Cloneable {
     ArrayList<Token> tokensInBrackets = new ArrayList<>();
+    long hash;
+    int length;
+    int size;
+    boolean isHashed = false;
+    boolean isShared = false;
+    ArrayList<TermVersion> versions;
 
     AnonComb(Position starting) {
         super("", DomainTag.USER_COMBINATOR, starting, starting);
     }
 
+    private AnonComb(Position starting, Position following) {
+        super("", DomainTag.USER_COMBINATOR, starting, following);
+    }
+
     AnonComb(AnonComb token) throws CloneNotSupportedException {
         super(token);
-        for (Token t : token.tokensInBrackets) {
-            this.tokensInBrackets.add(t.clone());
+        copyHash(token);
+        ArrayDeque<AbstractMap.SimpleEntry<AnonComb, AnonComb>> copies = new ArrayDeque<>();
+        copies.push(new AbstractMap.SimpleEntry<>(token, this));
+        while (!copies.isEmpty()) {
+            AbstractMap.SimpleEntry<AnonComb, AnonComb> copy = copies.pop();
+            for (Token t : copy.getKey().tokensInBrackets) {
+                if (t instanceof AnonComb) {
+                    AnonComb child = new AnonComb(t.coords.starting, t.coords.following);
+                    child.origin = t.origin;
+                    child.copyHash((AnonComb) t);
+                    copy.getValue().tokensInBrackets.add(child);
+                    copies.push(new AbstractMap.SimpleEntry<>((AnonComb) t, child));
+                } else
+                    copy.getValue().tokensInBrackets.add(t.clone());
+            }
         }
     }
 
+    private void copyHash(AnonComb token) {
+        hash = token.hash;
+        length = token.length;
+        size = token.size;
+        isHashed = token.isHashed;
+    }
+
     @Override
     protected Token clone() throws CloneNotSupportedException {
-        return new AnonComb(this);
+        return isShared ? this : new AnonComb(this);
+    }
+
+    //Rule bodies are shared by all references to the rule, so they are hashed once and never change afterwards.
+    void share() {
+        TermCodec.hash(new ArrayList<>(List.of(this)));
+        ArrayDeque<AnonComb> brackets = new ArrayDeque<>();
+        brackets.push(this);
+        while (!brackets.isEmpty()) {
+            AnonComb anonComb = brackets.pop();
+            anonComb.isShared = true;
+            for (Token token : anonComb.tokensInBrackets) {
+                if (token instanceof AnonComb)
+                    brackets.push((AnonComb) token);
+            }
+        }
+    }
+
+    //A shared bracket is copied before it changes, the copy shares the brackets inside it.
+    AnonComb own() {
+        if (!isShared)
+            return this;
+        AnonComb anonComb = new AnonComb(coords.starting, coords.following);
+        anonComb.origin = origin;
+        anonComb.copyHash(this);
+        anonComb.tokensInBrackets.addAll(tokensInBrackets);
+        return anonComb;
+    }
+
+    //Marks the bracket and all tokens in it as coming from the user combinator, for the profiler.
+    void setOrigin(String userCombName) {
+        ArrayDeque<AnonComb> brackets = new ArrayDeque<>();
+        brackets.push(this);
+        while (!brackets.isEmpty()) {
+            AnonComb anonComb = brackets.pop();
+            anonComb.origin = userCombName;
+            for (Token token : anonComb.tokensInBrackets) {
+                token.origin = userCombName;
+                if (token instanceof AnonComb)
+                    brackets.push((AnonComb) token);
+            }
+        }
+    }
+
+    //the bracket of an anonymous combinator or the body a user combinator refers to, null for other tokens
+    static AnonComb bracketOf(Token token) {
+        if (token instanceof AnonComb)
+            return (AnonComb) token;
+        if (token instanceof UserCombinatorToken)
+            return ((UserCombinatorToken) token).userComb;
+        return null;
     }
 
     void addToken(Token token) {
@@ -569,14 +757,928 @@ class AnonComb extends Token implements Cloneable {
             coords.following = token.coords.starting;
         coords.following = token.coords.following;
         tokensInBrackets.add(token);
-        if (token.tag == DomainTag.USER_COMBINATOR) {
-            attr += "(" + token.attr + ")";
-        } else
-            attr += token.attr;
+    }
+
+    @Override
+    public String toString() {
+        return coords.toString() + ": " + CombinatorialLogicInterpreter.printTokens(tokensInBrackets);
+    }
+}
+
+enum InterpretationStrategy {
+    NORMAL_ORDER("normal order"),
+    DUPLICATED_ARGUMENT_FIRST("duplicated argument first");
+
+    String text;
+
+    InterpretationStrategy(String text) {
+        this.text = text;
+    }
+}
+
+class InterpretationFrame {
+    final ArrayList<Token> tokens;
+    int index = 0;
+    boolean isInHeadNormalForm = false;
+    boolean isDuplicatedArgumentNormalized = false;
+    AnonComb argument;
+    long hash;
+    byte[] normalFormKey;
+    int numberOfInterpretationsAtStart;
+    String stack;
+    AnonComb bracket;
+
+    InterpretationFrame(ArrayList<Token> tokens) {
+        this.tokens = tokens;
+    }
+}
+
+//Interpretations, allocated nodes and the most live nodes seen in samples of the task by the user combinator
+//the nodes come from, "task" for the nodes written in the task. Stacks are the origins of the arguments being normalised.
+class Profiler {
+    static final String TASK = "task";
+    static final String CACHE = "cache";
+
+    private final HashMap<String, long[]> origins = new HashMap<>();
+    private final HashMap<String, Long> stacks = new HashMap<>();
+    private long numberOfInterpretations = 0;
+    private long numberOfAllocatedNodes = 0;
+    private long peakNumberOfLiveNodes = 0;
+    private long numberOfInterpretationsAtSample = 0;
+    private long sampleInterval = 0;
+    private int numberOfSamples = 0;
+
+    static String originOf(Token token) {
+        return token.origin == null ? TASK : token.origin;
+    }
+
+    static String push(String stack, String origin) {
+        if (stack == null)
+            return origin;
+        return stack.equals(origin) || stack.endsWith(";" + origin) ? stack : stack + ";" + origin;
+    }
+
+    private long[] get(String origin) {
+        return origins.computeIfAbsent(origin, o -> new long[3]);
+    }
+
+    void addInterpretations(String stack, String origin, int number) {
+        get(origin)[0] += number;
+        stacks.merge(push(stack == null ? TASK : stack, origin), (long) number, Long::sum);
+        numberOfInterpretations += number;
+    }
+
+    void addAllocatedNodes(String origin, long number) {
+        get(origin)[1] += number;
+        numberOfAllocatedNodes += number;
+    }
+
+    //number of nodes a clone of the token allocates, shared brackets and leaves are not copied
+    static long countCopiedNodes(Token token) {
+        if (!(token instanceof AnonComb) || ((AnonComb) token).isShared)
+            return 0;
+        long number = 0;
+        ArrayDeque<AnonComb> brackets = new ArrayDeque<>();
+        brackets.push((AnonComb) token);
+        while (!brackets.isEmpty()) {
+            AnonComb anonComb = brackets.pop();
+            number++;
+            for (Token t : anonComb.tokensInBrackets) {
+                if (t instanceof AnonComb && !((AnonComb) t).isShared)
+                    brackets.push((AnonComb) t);
+                else
+                    number++;
+            }
+        }
+        return number;
+    }
+
+    //The live nodes are counted as many interpretations apart as there were nodes at the last count,
+    //so counting costs about one node per interpretation. References and shared brackets count as one node.
+    //A peak between two samples is not seen, so the reported peaks are lower bounds.
+    void sample(ArrayList<Token> taskTokens, boolean isForced) {
+        if (!isForced && numberOfInterpretations - numberOfInterpretationsAtSample < sampleInterval)
+            return;
+        numberOfInterpretationsAtSample = numberOfInterpretations;
+        numberOfSamples++;
+
+        HashMap<String, Long> liveNodes = new HashMap<>();
+        long numberOfLiveNodes = 0;
+        ArrayDeque<ArrayList<Token>> brackets = new ArrayDeque<>();
+        brackets.push(taskTokens);
+        while (!brackets.isEmpty()) {
+            for (Token token : brackets.pop()) {
+                liveNodes.merge(originOf(token), 1L, Long::sum);
+                numberOfLiveNodes++;
+                if (token instanceof AnonComb && !((AnonComb) token).isShared)
+                    brackets.push(((AnonComb) token).tokensInBrackets);
+            }
+        }
+
+        for (String origin : liveNodes.keySet()) {
+            long[] counters = get(origin);
+            counters[2] = Math.max(counters[2], liveNodes.get(origin));
+        }
+        peakNumberOfLiveNodes = Math.max(peakNumberOfLiveNodes, numberOfLiveNodes);
+        sampleInterval = numberOfLiveNodes;
+    }
+
+    void printReport() {
+        ArrayList<String> sortedOrigins = new ArrayList<>(origins.keySet());
+        sortedOrigins.sort((a, b) -> origins.get(a)[0] != origins.get(b)[0] ?
+                Long.compare(origins.get(b)[0], origins.get(a)[0]) : a.compareTo(b));
+
+        System.out.println("\nProfile: " + numberOfInterpretations + " interpretations, " + numberOfAllocatedNodes +
+                " allocated nodes, sampled peak " + peakNumberOfLiveNodes + " live nodes in " + numberOfSamples + " samples");
+        System.out.println(String.format("%-10s %15s %7s %15s %15s", "origin", "interpretations", "%", "allocated", "sampled peak"));
+        for (String origin : sortedOrigins) {
+            long[] counters = origins.get(origin);
+            System.out.println(String.format("%-10s %15d %6.1f%% %15d %15d", origin, counters[0],
+                    numberOfInterpretations == 0 ? 0.0 : 100.0 * counters[0] / numberOfInterpretations, counters[1], counters[2]));
+        }
+    }
+
+    //one "origin;origin;... interpretations" line per stack, as flame graph tools read it
+    void writeFoldedStacks(String fileName) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        for (String stack : new TreeSet<>(stacks.keySet()))
+            lines.add(stack + " " + stacks.get(stack));
+        Files.write(Paths.get(fileName), lines);
+    }
+}
+
+//The tokens of a bracket, or of the task, from a step on: the tokens of the previous version with
+//numberOfReplacedTokens of them from index replaced by tokens. A full version (weight 0) replaces all of them.
+class TermVersion {
+    final int step;
+    final int index;
+    final int numberOfReplacedTokens;
+    final Token[] tokens;
+    final int size;
+    //tokens written since the last full version
+    final int weight;
+
+    TermVersion(int step, int index, int numberOfReplacedTokens, Token[] tokens, int size, int weight) {
+        this.step = step;
+        this.index = index;
+        this.numberOfReplacedTokens = numberOfReplacedTokens;
+        this.tokens = tokens;
+        this.size = size;
+        this.weight = weight;
+    }
+}
+
+//Every term the task went through. A step only adds the tokens it changes to a new version of its bracket
+//(see AnonComb.versions), brackets that do not change are shared by all versions. A full copy of a list is
+//kept only after the changes since the previous one have written as many tokens as the list has,
+//so the history takes memory in proportion to the number of steps and the tokens they write.
+class TermHistory {
+    private final ArrayList<TermVersion> taskVersions = new ArrayList<>();
+    private final ArrayList<AnonComb> redexBrackets = new ArrayList<>();
+    private final BitSet cachedSteps = new BitSet();
+    private final int firstStep;
+
+    TermHistory(ArrayList<Token> taskTokens, int firstStep) {
+        this.firstStep = firstStep;
+        taskVersions.add(createFullVersion(firstStep, taskTokens));
+    }
+
+    int getFirstStep() {
+        return firstStep;
+    }
+
+    int getLastStep() {
+        return firstStep + redexBrackets.size();
+    }
+
+    //before the tokens of a bracket change for the first time, their previous version is kept
+    void prepare(AnonComb bracket) {
+        if (bracket != null && bracket.versions == null) {
+            bracket.versions = new ArrayList<>();
+            bracket.versions.add(createFullVersion(0, bracket.tokensInBrackets));
+        }
+    }
+
+    private static TermVersion createFullVersion(int step, ArrayList<Token> currentTokens) {
+        return new TermVersion(step, 0, 0, currentTokens.toArray(new Token[0]), currentTokens.size(), 0);
+    }
+
+    //An interpreted combinator is replaced with its arguments, a bracket or a user combinator with its tokens.
+    void recordHead(AnonComb bracket, ArrayList<Token> currentTokens, Token head, int step) {
+        record(bracket, currentTokens, step, 0, getNumberOfArguments(head) + 1);
+    }
+
+    //The tokens from index on that replaced numberOfReplacedTokens tokens of the previous version,
+    //the others are the same as in it. Changes between two interpretations, e.g. removing brackets,
+    //add versions with the same step, of which the last one is the term of the step.
+    void record(AnonComb bracket, ArrayList<Token> currentTokens, int step, int index, int numberOfReplacedTokens) {
+        ArrayList<TermVersion> versions = bracket == null ? taskVersions : bracket.versions;
+        TermVersion previousVersion = versions.get(versions.size() - 1);
+        int numberOfTokens = currentTokens.size() - previousVersion.size + numberOfReplacedTokens;
+        int weight = previousVersion.weight + numberOfTokens + 1;
+        if (weight >= currentTokens.size())
+            versions.add(createFullVersion(step, currentTokens));
+        else
+            versions.add(new TermVersion(step, index, numberOfReplacedTokens,
+                    currentTokens.subList(index, index + numberOfTokens).toArray(new Token[0]), currentTokens.size(), weight));
+    }
+
+    void recordAll(AnonComb bracket, ArrayList<Token> currentTokens, int step) {
+        (bracket == null ? taskVersions : bracket.versions).add(createFullVersion(step, currentTokens));
+    }
+
+    void addStep(AnonComb bracket, boolean isCached) {
+        if (isCached)
+            cachedSteps.set(redexBrackets.size());
+        redexBrackets.add(bracket);
+    }
+
+    //The last full version is copied in reverse, so that the changes at the head are applied to its end.
+    private static List<Token> getTokens(ArrayList<TermVersion> versions, int step) {
+        int low = 0;
+        int high = versions.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (versions.get(middle).step <= step)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+
+        int first = low;
+        while (versions.get(first).weight != 0)
+            first--;
+        ArrayList<Token> reversedTokens = new ArrayList<>(List.of(versions.get(first).tokens));
+        Collections.reverse(reversedTokens);
+        for (int i = first + 1; i <= low; i++) {
+            TermVersion version = versions.get(i);
+            int end = reversedTokens.size() - version.index;
+            List<Token> replacedTokens = reversedTokens.subList(end - version.numberOfReplacedTokens, end);
+            replacedTokens.clear();
+            for (Token token : version.tokens)
+                replacedTokens.add(0, token);
+        }
+        Collections.reverse(reversedTokens);
+        return reversedTokens;
+    }
+
+    //Brackets that never changed still have the tokens they had at every step.
+    private static List<Token> getTokens(AnonComb bracket, int step) {
+        return bracket.versions == null ? bracket.tokensInBrackets : getTokens(bracket.versions, step);
+    }
+
+    private static int getNumberOfArguments(Token head) {
+        return switch (head.tag) {
+            case I_COMB -> 1;
+            case K_COMB -> 2;
+            case S_COMB -> 3;
+            default -> 0;
+        };
+    }
+
+    private void checkStep(int step) {
+        if (step < getFirstStep() || step > getLastStep())
+            throw new IllegalArgumentException("no step " + step + ", steps are " + getFirstStep() + "-" + getLastStep());
+    }
+
+    String printTerm(int step) {
+        checkStep(step);
+        return printTokens(getTokens(taskVersions, step), step);
+    }
+
+    private static String printTokens(List<Token> currentTokens, int step) {
+        StringBuilder stringBuilder = new StringBuilder();
+        ArrayDeque<Iterator<Token>> brackets = new ArrayDeque<>();
+        brackets.push(currentTokens.iterator());
+
+        while (!brackets.isEmpty()) {
+            Iterator<Token> tokensInBrackets = brackets.peek();
+            if (!tokensInBrackets.hasNext()) {
+                brackets.pop();
+                if (!brackets.isEmpty())
+                    stringBuilder.append(")");
+                continue;
+            }
+
+            Token token = tokensInBrackets.next();
+            AnonComb bracket = AnonComb.bracketOf(token);
+            if (bracket != null) {
+                stringBuilder.append("(");
+                brackets.push(getTokens(bracket, step).iterator());
+            } else
+                stringBuilder.append(token.attr);
+        }
+
+        return stringBuilder.toString();
+    }
+
+    //the combinator and arguments the step interpreted, as they were before it
+    String printRedex(int step) {
+        checkStep(step);
+        if (step == getFirstStep())
+            throw new IllegalArgumentException("step " + step + " is the start of the history");
+        if (cachedSteps.get(step - firstStep - 1))
+            return "replayed from the normal form cache";
+
+        AnonComb bracket = redexBrackets.get(step - firstStep - 1);
+        List<Token> currentTokens = bracket == null ? getTokens(taskVersions, step - 1) : getTokens(bracket, step - 1);
+        return printTokens(currentTokens.subList(0, getNumberOfArguments(currentTokens.get(0)) + 1), step - 1) +
+                (bracket == null ? " in the task" : " in a bracket from " + Profiler.originOf(bracket));
+    }
+
+    //The later term with its smallest changed part marked as [earlier -> later]: brackets are followed down
+    //while only one argument in them differs, then the arguments both sides start and end with are left out.
+    String diff(int fromStep, int toStep) {
+        checkStep(fromStep);
+        checkStep(toStep);
+        List<Token> fromTokens = getTokens(taskVersions, fromStep);
+        List<Token> toTokens = getTokens(taskVersions, toStep);
+        ArrayDeque<AbstractMap.SimpleEntry<List<Token>, Integer>> path = new ArrayDeque<>();
+
+        while (true) {
+            if (fromTokens.size() != toTokens.size())
+                break;
+            int changedIndex = -1;
+            int numberOfChanges = 0;
+            for (int i = 0; i < fromTokens.size(); i++) {
+                if (!isSameToken(fromTokens, fromStep, toTokens, toStep, i, i)) {
+                    changedIndex = i;
+                    numberOfChanges++;
+                }
+            }
+            if (numberOfChanges == 0)
+                return "no changes: " + printTokens(toTokens, toStep);
+            if (numberOfChanges > 1 || !(fromTokens.get(changedIndex) instanceof AnonComb) ||
+                    !(toTokens.get(changedIndex) instanceof AnonComb))
+                break;
+            path.push(new AbstractMap.SimpleEntry<>(toTokens, changedIndex));
+            fromTokens = getTokens((AnonComb) fromTokens.get(changedIndex), fromStep);
+            toTokens = getTokens((AnonComb) toTokens.get(changedIndex), toStep);
+        }
+
+        int prefix = 0;
+        while (prefix < fromTokens.size() && prefix < toTokens.size() && isSameToken(fromTokens, fromStep, toTokens, toStep, prefix, prefix))
+            prefix++;
+        int suffix = 0;
+        while (suffix < fromTokens.size() - prefix && suffix < toTokens.size() - prefix && isSameToken(fromTokens, fromStep,
+                toTokens, toStep, fromTokens.size() - 1 - suffix, toTokens.size() - 1 - suffix))
+            suffix++;
+        String term = printTokens(toTokens.subList(0, prefix), toStep) + "[" +
+                printTokens(fromTokens.subList(prefix, fromTokens.size() - suffix), fromStep) + " -> " +
+                printTokens(toTokens.subList(prefix, toTokens.size() - suffix), toStep) + "]" +
+                printTokens(toTokens.subList(toTokens.size() - suffix, toTokens.size()), toStep);
+        while (!path.isEmpty()) {
+            List<Token> currentTokens = path.peek().getKey();
+            int index = path.pop().getValue();
+            term = printTokens(currentTokens.subList(0, index), toStep) + "(" + term + ")" +
+                    printTokens(currentTokens.subList(index + 1, currentTokens.size()), toStep);
+        }
+        return term;
+    }
+
+    private static boolean isSameToken(List<Token> fromTokens, int fromStep, List<Token> toTokens, int toStep, int fromIndex, int toIndex) {
+        return printTokens(fromTokens.subList(fromIndex, fromIndex + 1), fromStep)
+                .equals(printTokens(toTokens.subList(toIndex, toIndex + 1), toStep));
+    }
+}
+
+class TermCodec {
+    static final byte K_COMB = 1;
+    static final byte S_COMB = 2;
+    static final byte I_COMB = 3;
+    static final byte LEFT_BRACKET = 4;
+    static final byte RIGHT_BRACKET = 5;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    static byte[] encode(ArrayList<Token> currentTokens) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ArrayDeque<Iterator<Token>> brackets = new ArrayDeque<>();
+        brackets.push(currentTokens.iterator());
+
+        while (!brackets.isEmpty()) {
+            Iterator<Token> tokensInBrackets = brackets.peek();
+            if (!tokensInBrackets.hasNext()) {
+                brackets.pop();
+                if (!brackets.isEmpty())
+                    bytes.write(RIGHT_BRACKET);
+                continue;
+            }
+
+            Token token = tokensInBrackets.next();
+            AnonComb bracket = AnonComb.bracketOf(token);
+            if (bracket != null) {
+                bytes.write(LEFT_BRACKET);
+                brackets.push(bracket.tokensInBrackets.iterator());
+            } else
+                bytes.write(code(token));
+        }
+
+        return bytes.toByteArray();
+    }
+
+    //Encoding read the same way as hash, so that two terms with the same hash can be compared.
+    static byte[] encodeCanonical(ArrayList<Token> currentTokens) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ArrayDeque<Iterator<Token>> brackets = new ArrayDeque<>();
+        brackets.push(flattenHead(currentTokens).iterator());
+
+        while (!brackets.isEmpty()) {
+            Iterator<Token> tokensInBrackets = brackets.peek();
+            if (!tokensInBrackets.hasNext()) {
+                brackets.pop();
+                if (!brackets.isEmpty())
+                    bytes.write(RIGHT_BRACKET);
+                continue;
+            }
+
+            Token token = tokensInBrackets.next();
+            AnonComb bracket = AnonComb.bracketOf(token);
+            if (bracket == null) {
+                bytes.write(code(token));
+                continue;
+            }
+            ArrayList<Token> tokens = flattenHead(bracket.tokensInBrackets);
+            if (tokens.size() == 1)
+                bytes.write(code(tokens.get(0)));
+            else {
+                bytes.write(LEFT_BRACKET);
+                brackets.push(tokens.iterator());
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static ArrayList<Token> flattenHead(ArrayList<Token> currentTokens) {
+        ArrayDeque<ArrayList<Token>> heads = new ArrayDeque<>();
+        heads.push(currentTokens);
+        while (!heads.peek().isEmpty() && AnonComb.bracketOf(heads.peek().get(0)) != null)
+            heads.push(AnonComb.bracketOf(heads.peek().get(0)).tokensInBrackets);
+
+        ArrayList<Token> tokens = new ArrayList<>(heads.pop());
+        while (!heads.isEmpty()) {
+            ArrayList<Token> tokensAroundHead = heads.pop();
+            tokens.addAll(tokensAroundHead.subList(1, tokensAroundHead.size()));
+        }
+        return tokens;
+    }
+
+    static ArrayList<Token> decode(byte[] bytes, Position position) {
+        ArrayList<Token> currentTokens = new ArrayList<>();
+        ArrayDeque<AnonComb> openBrackets = new ArrayDeque<>();
+
+        for (byte b : bytes) {
+            Token token = switch (b) {
+                case K_COMB -> new KCombToken(position, position);
+                case S_COMB -> new SCombToken(position, position);
+                case I_COMB -> new ICombToken(position, position);
+                case LEFT_BRACKET -> {
+                    openBrackets.push(new AnonComb(position));
+                    yield null;
+                }
+                case RIGHT_BRACKET -> openBrackets.pop();
+                default -> throw new IllegalArgumentException("Unexpected term code: " + b);
+            };
+            if (token != null) {
+                if (openBrackets.isEmpty())
+                    currentTokens.add(token);
+                else
+                    openBrackets.peek().addToken(token);
+            }
+        }
+
+        return currentTokens;
+    }
+
+    //Polynomial hash of the term read without brackets around a head and around a single combinator,
+    //so that (KS)K and KSK or (K) and K get the same hash, as interpret does not tell them apart.
+    //A user combinator is read as its bracketed body.
+    static long hash(ArrayList<Token> currentTokens) {
+        ArrayDeque<AnonComb> brackets = new ArrayDeque<>();
+        pushUnhashed(currentTokens, brackets);
+
+        while (!brackets.isEmpty()) {
+            AnonComb anonComb = brackets.peek();
+            if (anonComb.isHashed) {
+                brackets.pop();
+            } else if (!pushUnhashed(anonComb.tokensInBrackets, brackets)) {
+                brackets.pop();
+                anonComb.hash = combine(anonComb.tokensInBrackets, anonComb);
+                anonComb.size = size(anonComb.tokensInBrackets);
+                anonComb.isHashed = true;
+            }
+        }
+
+        return combine(currentTokens, null);
+    }
+
+    //only valid after hash() has been computed for the same tokens
+    static int size(ArrayList<Token> currentTokens) {
+        int size = 0;
+        for (Token token : currentTokens) {
+            AnonComb bracket = AnonComb.bracketOf(token);
+            size += bracket != null ? bracket.size + 2 : 1;
+        }
+        return size;
+    }
+
+    private static boolean pushUnhashed(ArrayList<Token> currentTokens, ArrayDeque<AnonComb> brackets) {
+        boolean isPushed = false;
+        for (Token token : currentTokens) {
+            AnonComb bracket = AnonComb.bracketOf(token);
+            if (bracket != null && !bracket.isHashed) {
+                brackets.push(bracket);
+                isPushed = true;
+            }
+        }
+        return isPushed;
+    }
+
+    private static long combine(ArrayList<Token> currentTokens, AnonComb anonComb) {
+        long hash = 0;
+        int length = 0;
+
+        for (int i = 0; i < currentTokens.size(); i++) {
+            Token token = currentTokens.get(i);
+            AnonComb head = AnonComb.bracketOf(token);
+            if (i == 0 && head != null) {
+                hash = head.hash;
+                length = head.length;
+            } else {
+                hash = mix(hash) * HASH_MULTIPLIER + value(token);
+                length++;
+            }
+        }
+
+        if (anonComb != null)
+            anonComb.length = length;
+        return hash;
+    }
+
+    private static long value(Token token) {
+        AnonComb anonComb = AnonComb.bracketOf(token);
+        if (anonComb == null)
+            return code(token);
+
+        if (anonComb.length == 1)
+            return anonComb.hash;
+        return mix(anonComb.hash ^ (anonComb.length * 0xC2B2AE3D27D4EB4FL));
+    }
+
+    //Mixing between the tokens keeps the hash from being a polynomial of them, whose collisions are easy to build.
+    //mix(0) = 0, so a single token hashes to its own value, as (K) does to K.
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+
+    private static byte code(Token token) {
+        return switch (token.tag) {
+            case K_COMB -> K_COMB;
+            case S_COMB -> S_COMB;
+            case I_COMB -> I_COMB;
+            default -> throw new IllegalArgumentException("Unexpected token in term: " + token);
+        };
+    }
+}
+
+class EquivalenceQuery {
+    private final ArrayList<CombinatorialLogicInterpreter> sides = new ArrayList<>();
+    private final ArrayList<Map<Long, Integer>> states = new ArrayList<>();
+    private final DomainTag[] heads = new DomainTag[2];
+    private final int[] numbersOfArguments = new int[2];
+
+    volatile String verdict;
+
+    EquivalenceQuery(CombinatorialLogicInterpreter left, CombinatorialLogicInterpreter right) {
+        sides.add(left);
+        sides.add(right);
+        states.add(new ConcurrentHashMap<>());
+        states.add(new ConcurrentHashMap<>());
+    }
+
+    //Each side adds its state before looking at the other one, so a common state is seen by at least one side.
+    //Only the hash of a state and the number of interpretations it was reached after are kept. Different terms
+    //can have the same hash, so a common hash is confirmed by interpreting the other side again up to that state.
+    void addState(CombinatorialLogicInterpreter side, long hash, int numberOfInterpretations) throws CloneNotSupportedException {
+        int i = sides.indexOf(side);
+        states.get(i).putIfAbsent(hash, numberOfInterpretations);
+        Integer numberOfOtherInterpretations = states.get(1 - i).get(hash);
+        if (numberOfOtherInterpretations != null && Arrays.equals(TermCodec.encodeCanonical(side.taskTokens),
+                sides.get(1 - i).replay(numberOfOtherInterpretations)))
+            decide("equivalent, both sides reach the same term");
+    }
+
+    //The head and the number of its arguments never change once the whole term is in head normal form.
+    synchronized void setHeadNormalForm(CombinatorialLogicInterpreter side, DomainTag head, int numberOfArguments) {
+        int i = sides.indexOf(side);
+        heads[i] = head;
+        numbersOfArguments[i] = numberOfArguments;
+        if (heads[1 - i] != null && (heads[0] != heads[1] || numbersOfArguments[0] != numbersOfArguments[1]))
+            decide("not equivalent, head normal forms " + heads[0].text + " with " + numbersOfArguments[0] +
+                    " arguments and " + heads[1].text + " with " + numbersOfArguments[1] + " arguments");
+    }
+
+    synchronized void decide(String verdict) {
+        if (this.verdict == null) {
+            this.verdict = verdict;
+            for (CombinatorialLogicInterpreter side : sides)
+                side.cancel();
+        }
+    }
+}
+
+class WorkQueues {
+    final ArrayList<ArrayDeque<AnonComb>> deques = new ArrayList<>();
+    int numberOfRunningTasks = 0;
+    int numberOfLeasedInterpretations = 0;
+    int numberOfTasks = 0;
+    int numberOfStolenTasks = 0;
+
+    WorkQueues(int numberOfWorkers) {
+        for (int i = 0; i < numberOfWorkers; i++)
+            deques.add(new ArrayDeque<>());
+    }
+
+    void addTask(int worker, AnonComb task) {
+        deques.get(worker).addLast(task);
+        numberOfTasks++;
+    }
+
+    //Own tasks are taken from the newest end, tasks of other workers are stolen from the oldest end.
+    AnonComb takeTask(int worker) {
+        AnonComb task = deques.get(worker).pollLast();
+        for (int i = 1; task == null && i < deques.size(); i++) {
+            task = deques.get((worker + i) % deques.size()).pollFirst();
+            if (task != null)
+                numberOfStolenTasks++;
+        }
+        return task;
+    }
+}
+
+class Checkpointer {
+    private static final int NUMBER_OF_ITERATIONS_BETWEEN_CLOCK_CHECKS = 1024;
+
+    private final Path path;
+    private final long interval;
+    //A daemon thread, so a failed run exits without close(). A write cut short leaves only the temporary file behind.
+    private final ExecutorService writer = CombinatorialLogicInterpreter.newDaemonExecutor();
+    private Future<?> lastWrite;
+    private long lastCheckpoint = System.nanoTime();
+    private int numberOfIterations = 0;
+
+    int numberOfCheckpoints = 0;
+
+    Checkpointer(String fileName, int intervalInSeconds) {
+        path = Paths.get(fileName);
+        interval = TimeUnit.SECONDS.toNanos(intervalInSeconds);
+    }
+
+    //A new snapshot is skipped while the previous one is still being written.
+    boolean isDue() {
+        if (++numberOfIterations % NUMBER_OF_ITERATIONS_BETWEEN_CLOCK_CHECKS != 0 ||
+                System.nanoTime() - lastCheckpoint < interval)
+            return false;
+        if (lastWrite != null && !lastWrite.isDone())
+            return false;
+        checkLastWrite();
+        return true;
+    }
+
+    //A snapshot that could not be written does not stop the interpretation, the next one is tried later.
+    private void checkLastWrite() {
+        if (lastWrite == null)
+            return;
+        try {
+            lastWrite.get();
+        } catch (ExecutionException e) {
+            System.out.println("Warning: checkpoint " + path + " could not be written: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lastWrite = null;
+    }
+
+    void save(byte[] snapshot) {
+        lastCheckpoint = System.nanoTime();
+        numberOfCheckpoints++;
+        lastWrite = writer.submit(() -> {
+            Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DeflaterOutputStream out = new DeflaterOutputStream(Files.newOutputStream(temporaryPath))) {
+                out.write(snapshot);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return null;
+        });
+    }
+
+    byte[] load() {
+        if (!Files.exists(path))
+            return null;
+        try (InflaterInputStream in = new InflaterInputStream(Files.newInputStream(path))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    //The snapshot of a finished interpretation is removed, so it cannot be resumed twice.
+    void close() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+        if (lastWrite != null && lastWrite.isDone())
+            checkLastWrite();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+class NormalFormCache {
+    private static final int MAGIC = 0x434C4E46;
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_HEADER_SIZE = 24;
+    private static final int WAYS = 8;
+    //the lengths of a key and its normal form are kept as shorts, a file is mapped as a single buffer
+    private static final int MAX_ENTRY_SIZE = Short.MAX_VALUE;
+    private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final int numberOfSlots;
+    private final int slotSize;
+    private long clock;
+
+    int numberOfHits = 0;
+    int numberOfReplayedInterpretations = 0;
+
+    private NormalFormCache(FileChannel channel, FileLock lock, int numberOfSlots, int slotSize) throws IOException {
+        this.channel = channel;
+        this.lock = lock;
+        this.numberOfSlots = numberOfSlots;
+        this.slotSize = slotSize;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) numberOfSlots * slotSize);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != numberOfSlots || buffer.getInt(8) != slotSize) {
+            for (int i = 0; i < buffer.capacity(); i++)
+                buffer.put(i, (byte) 0);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, numberOfSlots);
+            buffer.putInt(8, slotSize);
+        }
+        clock = buffer.getLong(16);
+    }
+
+    //Slots are grouped into sets of WAYS entries, the least recently used entry of a set is evicted.
+    static NormalFormCache open(String fileName, int numberOfEntries, int entrySize) {
+        int numberOfSlots = Math.max(WAYS, numberOfEntries / WAYS * WAYS);
+        int slotSize = Math.max(entrySize, SLOT_HEADER_SIZE + 2);
+        if (slotSize > MAX_ENTRY_SIZE) {
+            System.out.println("Warning: normal form cache entries cannot be larger than " + MAX_ENTRY_SIZE +
+                    " bytes, running without it");
+            return null;
+        }
+        if (HEADER_SIZE + (long) numberOfSlots * slotSize > MAX_FILE_SIZE) {
+            System.out.println("Warning: normal form cache " + fileName + " would be larger than " + MAX_FILE_SIZE +
+                    " bytes, running without it");
+            return null;
+        }
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                System.out.println("Warning: normal form cache " + fileName + " is used by another process, running without it");
+                channel.close();
+                return null;
+            }
+            return new NormalFormCache(channel, lock, numberOfSlots, slotSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    synchronized AbstractMap.SimpleEntry<byte[], Integer> get(long hash, byte[] key) {
+        int slot = find(hash, key);
+        if (slot < 0)
+            return null;
+
+        int offset = offset(slot);
+        buffer.putLong(offset + 8, ++clock);
+        byte[] normalForm = new byte[buffer.getShort(offset + 22)];
+        buffer.get(offset + SLOT_HEADER_SIZE + key.length, normalForm);
+        return new AbstractMap.SimpleEntry<>(normalForm, buffer.getInt(offset + 16));
+    }
+
+    synchronized void put(long hash, byte[] key, byte[] normalForm, int numberOfInterpretations) {
+        if (SLOT_HEADER_SIZE + key.length + normalForm.length > slotSize)
+            return;
+
+        int slot = find(hash, key);
+        if (slot < 0) {
+            int firstSlot = Math.floorMod(hash, numberOfSlots / WAYS) * WAYS;
+            slot = firstSlot;
+            for (int i = firstSlot; i < firstSlot + WAYS; i++) {
+                if (buffer.getLong(offset(i) + 8) < buffer.getLong(offset(slot) + 8))
+                    slot = i;
+            }
+        }
+
+        int offset = offset(slot);
+        buffer.putLong(offset, hash);
+        buffer.putLong(offset + 8, ++clock);
+        buffer.putInt(offset + 16, numberOfInterpretations);
+        buffer.putShort(offset + 20, (short) key.length);
+        buffer.putShort(offset + 22, (short) normalForm.length);
+        buffer.put(offset + SLOT_HEADER_SIZE, key);
+        buffer.put(offset + SLOT_HEADER_SIZE + key.length, normalForm);
+    }
+
+    synchronized void addHit(int numberOfInterpretations) {
+        numberOfHits++;
+        numberOfReplayedInterpretations += numberOfInterpretations;
+    }
+
+    int maxKeySize() {
+        return slotSize - SLOT_HEADER_SIZE - 1;
+    }
+
+    synchronized void close() {
+        buffer.putLong(16, clock);
+        buffer.force();
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int find(long hash, byte[] key) {
+        int firstSlot = Math.floorMod(hash, numberOfSlots / WAYS) * WAYS;
+        for (int i = firstSlot; i < firstSlot + WAYS; i++) {
+            int offset = offset(i);
+            if (buffer.getLong(offset + 8) != 0 && buffer.getLong(offset) == hash &&
+                    buffer.getShort(offset + 20) == key.length &&
+                    buffer.slice(offset + SLOT_HEADER_SIZE, key.length).equals(ByteBuffer.wrap(key)))
+                return i;
+        }
+        return -1;
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
     }
 }
 
+//A part of the watched program text: the complexity, a rule or the task, which runs to the end of the text.
+class Section {
+    final DomainTag tag;
+    int start, end;
+    boolean isRescanned = true;
+    String userCombName;
+    AbstractMap.SimpleEntry<AnonComb, Integer> userComb;
+    ArrayList<Token> tokens;
+    String lexemes;
+    Set<String> userCombNames;
+
+    Section(DomainTag tag, int start) {
+        this.tag = tag;
+        this.start = start;
+    }
+
+    Section(Section section, int shift) {
+        tag = section.tag;
+        start = section.start + shift;
+        end = section.end + shift;
+        isRescanned = false;
+        userCombName = section.userCombName;
+        userComb = section.userComb;
+        tokens = section.tokens;
+        lexemes = section.lexemes;
+        userCombNames = section.userCombNames;
+    }
+}
+
+class WatchedProgram {
+    String text = "";
+    ArrayList<Section> sections = new ArrayList<>();
+    String result;
+}
+
 public class CombinatorialLogicInterpreter {
+    private static final int SNAPSHOT_MAGIC = 0x434C4350;
+    private static final int NUMBER_OF_LEASED_INTERPRETATIONS = 100000;
+    //a worker that does not answer in time is given up, its task goes to another worker or is interpreted here
+    private static final int WORKER_TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(5);
+    private static final int WATCH_PAUSE = 50;
+
     static ArrayList<Token> tokens = new ArrayList<>();
     static StringBuilder seq_lexemes = new StringBuilder();
 
@@ -584,33 +1686,790 @@ public class CombinatorialLogicInterpreter {
     Token currentToken;
 
     private final HashMap<String, AbstractMap.SimpleEntry<AnonComb, Integer>> userCombs = new HashMap<>();
-    private final ArrayList<Token> taskTokens = new ArrayList<>();
+    final ArrayList<Token> taskTokens = new ArrayList<>();
+    private final ArrayList<Token> equivalentTaskTokens = new ArrayList<>();
     private int infOrExpOrQuadComp = 0;
     private int maxNumberOfInterpretations = 0;
     private int numberOfBasicCombsInTask = 0;
+    private int numberOfBasicCombsInEquivalentTask = 0;
     private int numberOfBasicCombsInUserComb;
 
     private int numberOfInterpretations = 0;
+    private boolean isBudgetExhausted = false;
+
+    private NormalFormCache normalFormCache;
+    private boolean isTraceEnabled = true;
+    private InterpretationStrategy interpretationStrategy = InterpretationStrategy.NORMAL_ORDER;
+    private volatile boolean isCancelled = false;
+    private boolean isInterrupted = false;
+    private Checkpointer checkpointer;
+    private EquivalenceQuery equivalenceQuery;
+    private byte[] startTerm;
+    private volatile CombinatorialLogicInterpreter replay;
+    private volatile EquivalenceQuery runningEquivalenceQuery;
+    private int maxNumberOfRuleOptimizationInterpretations = 0;
+    private boolean isWatching = false;
+    private Profiler profiler;
+    private TermHistory history;
+
+    public static void main(String[] args) throws CloneNotSupportedException, InterruptedException, IOException {
+        String fileName = null;
+        String cacheFileName = null;
+        int numberOfCacheEntries = 4096;
+        int cacheEntrySize = 1024;
+        int maxNumberOfRuleOptimizationInterpretations = 0;
+        boolean isRacing = false;
+        String checkpointFileName = null;
+        int checkpointInterval = 60;
+        boolean isResuming = false;
+        String[] workerAddresses = null;
+        int splitSize = 256;
+        boolean isWatching = false;
+        boolean isProfiling = false;
+        String foldedStacksFileName = null;
+        boolean isRecordingHistory = false;
+        for (String arg : args) {
+            if (arg.startsWith("--cache=")) {
+                cacheFileName = arg.substring("--cache=".length());
+            } else if (arg.startsWith("--cache-entries=")) {
+                numberOfCacheEntries = Integer.parseInt(arg.substring("--cache-entries=".length()));
+            } else if (arg.startsWith("--cache-entry-size=")) {
+                cacheEntrySize = Integer.parseInt(arg.substring("--cache-entry-size=".length()));
+            } else if (arg.equals("--optimize-rules")) {
+                maxNumberOfRuleOptimizationInterpretations = 1000;
+            } else if (arg.startsWith("--optimize-rules=")) {
+                maxNumberOfRuleOptimizationInterpretations = Integer.parseInt(arg.substring("--optimize-rules=".length()));
+            } else if (arg.equals("--race")) {
+                isRacing = true;
+            } else if (arg.startsWith("--checkpoint=")) {
+                checkpointFileName = arg.substring("--checkpoint=".length());
+            } else if (arg.startsWith("--checkpoint-interval=")) {
+                checkpointInterval = Integer.parseInt(arg.substring("--checkpoint-interval=".length()));
+            } else if (arg.equals("--resume")) {
+                isResuming = true;
+            } else if (arg.startsWith("--worker=")) {
+                serveWorker(Integer.parseInt(arg.substring("--worker=".length())));
+                return;
+            } else if (arg.startsWith("--workers=")) {
+                workerAddresses = arg.substring("--workers=".length()).split(",");
+            } else if (arg.startsWith("--split-size=")) {
+                splitSize = Integer.parseInt(arg.substring("--split-size=".length()));
+            } else if (arg.equals("--watch")) {
+                isWatching = true;
+            } else if (arg.equals("--profile")) {
+                isProfiling = true;
+            } else if (arg.startsWith("--profile=")) {
+                isProfiling = true;
+                foldedStacksFileName = arg.substring("--profile=".length());
+            } else if (arg.equals("--history")) {
+                isRecordingHistory = true;
+            } else
+                fileName = arg;
+        }
 
-    public static void main(String[] args) throws CloneNotSupportedException {
+        if (isWatching) {
+            new CombinatorialLogicInterpreter().watch(fileName);
+            return;
+        }
         Lexer l = new Lexer();
-        l.lex(args[0]);
+        l.lex(fileName);
         System.out.println(seq_lexemes + "\n");
         CombinatorialLogicInterpreter interpreter = new CombinatorialLogicInterpreter();
+        interpreter.maxNumberOfRuleOptimizationInterpretations = maxNumberOfRuleOptimizationInterpretations;
         interpreter.parse();
+        if (!interpreter.equivalentTaskTokens.isEmpty()) {
+            System.out.println(interpreter.queryEquivalence());
+            return;
+        }
+        if (cacheFileName != null)
+            interpreter.normalFormCache = NormalFormCache.open(cacheFileName, numberOfCacheEntries, cacheEntrySize);
         System.out.println("Max number of interpretations: " + ((interpreter.infOrExpOrQuadComp != 0) ? interpreter.maxNumberOfInterpretations : "infinity"));
-        System.out.println("Start task: " + interpreter.printTree(interpreter.taskTokens) + "\n");
-        interpreter.interpret(interpreter.taskTokens);
+        if (checkpointFileName != null && !isRacing)
+            interpreter.checkpointer = new Checkpointer(checkpointFileName, checkpointInterval);
+        if (isProfiling && !isRacing && workerAddresses == null)
+            interpreter.profiler = new Profiler();
+        isRecordingHistory = isRecordingHistory && !isRacing && workerAddresses == null;
+        if (isRecordingHistory)
+            interpreter.isTraceEnabled = false;
+        byte[] snapshot = isResuming && interpreter.checkpointer != null ? interpreter.checkpointer.load() : null;
+        if (snapshot != null) {
+            ArrayDeque<InterpretationFrame> frames = interpreter.restoreSnapshot(snapshot);
+            if (isRecordingHistory) {
+                interpreter.history = new TermHistory(interpreter.taskTokens, interpreter.numberOfInterpretations);
+                for (InterpretationFrame frame : frames)
+                    interpreter.history.prepare(frame.bracket);
+            }
+            System.out.println("Resumed task: " + interpreter.printTree(interpreter.taskTokens) + "\n");
+            interpreter.interpret(frames);
+        } else {
+            System.out.println("Start task: " + interpreter.printTree(interpreter.taskTokens) + "\n");
+            if (isRecordingHistory)
+                interpreter.history = new TermHistory(interpreter.taskTokens, interpreter.numberOfInterpretations);
+            if (isRacing)
+                interpreter = race(maxNumberOfRuleOptimizationInterpretations, interpreter.normalFormCache);
+            else if (workerAddresses != null)
+                interpreter.interpretDistributed(workerAddresses, splitSize);
+            else
+                interpreter.interpret(interpreter.taskTokens);
+        }
         System.out.println("\nNumber of interpretations: " + interpreter.numberOfInterpretations);
         System.out.println("Result: " + interpreter.printTree(interpreter.taskTokens));
+        if (interpreter.profiler != null) {
+            interpreter.profiler.sample(interpreter.taskTokens, true);
+            interpreter.profiler.printReport();
+            if (foldedStacksFileName != null) {
+                interpreter.profiler.writeFoldedStacks(foldedStacksFileName);
+                System.out.println("Folded stacks: " + foldedStacksFileName);
+            }
+        }
+        if (interpreter.normalFormCache != null) {
+            System.out.println("Normal form cache hits: " + interpreter.normalFormCache.numberOfHits +
+                    ", replayed interpretations: " + interpreter.normalFormCache.numberOfReplayedInterpretations);
+            interpreter.normalFormCache.close();
+        }
+        if (interpreter.checkpointer != null)
+            interpreter.checkpointer.close();
+        if (interpreter.history != null)
+            interpreter.browseHistory();
+    }
+
+    //Commands: <step>, diff <step> <step>, redex <step>, quit
+    private void browseHistory() throws IOException {
+        System.out.println("\nHistory of steps " + history.getFirstStep() + "-" + history.getLastStep() +
+                ", commands: <step>, diff <step> <step>, redex <step>, quit");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            String[] words = line.trim().split("\\s+");
+            try {
+                if (words[0].equals("quit"))
+                    break;
+                else if (words[0].equals("diff") && words.length == 3)
+                    System.out.println(history.diff(Integer.parseInt(words[1]), Integer.parseInt(words[2])));
+                else if (words[0].equals("redex") && words.length == 2)
+                    System.out.println(history.printRedex(Integer.parseInt(words[1])));
+                else if (words.length == 1 && !words[0].isEmpty())
+                    System.out.println(history.printTerm(Integer.parseInt(words[0])));
+                else if (!words[0].isEmpty())
+                    System.out.println("Unknown command: " + line.trim());
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR: " + e.getMessage());
+            }
+        }
+    }
+
+    //Every strategy interprets its own copy of the task, the first one that reaches a normal form wins.
+    //All of them use the same rules, so they cannot reach different normal forms.
+    //Without a winner the result of the first strategy is reported, as in an ordinary run.
+    //Cached step counts are the ones of normal order, so only that strategy uses the cache.
+    private static CombinatorialLogicInterpreter race(int maxNumberOfRuleOptimizationInterpretations,
+                                                      NormalFormCache normalFormCache) throws CloneNotSupportedException, InterruptedException {
+        ArrayList<CombinatorialLogicInterpreter> racers = new ArrayList<>();
+        for (InterpretationStrategy strategy : InterpretationStrategy.values()) {
+            CombinatorialLogicInterpreter racer = new CombinatorialLogicInterpreter();
+            racer.isTraceEnabled = false;
+            racer.interpretationStrategy = strategy;
+            racer.maxNumberOfRuleOptimizationInterpretations = maxNumberOfRuleOptimizationInterpretations;
+            if (strategy == InterpretationStrategy.NORMAL_ORDER)
+                racer.normalFormCache = normalFormCache;
+            racer.parse();
+            racers.add(racer);
+        }
+
+        ExecutorService executor = newConcurrentExecutor(racers.size());
+        CompletionService<CombinatorialLogicInterpreter> completionService = new ExecutorCompletionService<>(executor);
+        for (CombinatorialLogicInterpreter racer : racers) {
+            completionService.submit(() -> {
+                racer.interpret(racer.taskTokens);
+                return racer;
+            });
+        }
+
+        CombinatorialLogicInterpreter winner = null;
+        for (int i = 0; i < racers.size() && winner == null; i++) {
+            try {
+                CombinatorialLogicInterpreter racer = completionService.take().get();
+                if (!racer.isBudgetExhausted)
+                    winner = racer;
+            } catch (ExecutionException e) {
+                System.out.println("Configuration failed: " + e.getCause());
+            }
+        }
+        for (CombinatorialLogicInterpreter racer : racers) {
+            racer.isCancelled = true;
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        for (CombinatorialLogicInterpreter racer : racers) {
+            System.out.println(racer.getConfiguration() + ": " + racer.numberOfInterpretations + " interpretations, " +
+                    (racer == winner ? "won" : racer.isBudgetExhausted ? "budget exhausted" :
+                            racer.isInterrupted ? "cancelled" : "finished"));
+        }
+        if (winner == null)
+            winner = racers.get(0);
+        winner.normalFormCache = normalFormCache;
+        System.out.println("Winner: " + winner.getConfiguration());
+
+        return winner;
+    }
+
+    //Arguments left after the head normal form of the task are normalised by workers (see serveWorker),
+    //exp and quad budgets are leased to them in parts of NUMBER_OF_LEASED_INTERPRETATIONS.
+    //Tasks left when the budget runs out are interpreted here, which only removes the brackets a local run removes.
+    private void interpretDistributed(String[] workerAddresses, int splitSize) throws CloneNotSupportedException, InterruptedException {
+        boolean isInterpreted;
+        do {
+            isInterpreted = interpretHead(taskTokens);
+        } while (isInterpreted);
+
+        WorkQueues workQueues = new WorkQueues(workerAddresses.length);
+        for (int i = 0; i < taskTokens.size(); i++) {
+            if (taskTokens.get(i).tag == DomainTag.USER_COMBINATOR)
+                workQueues.addTask(workQueues.numberOfTasks % workerAddresses.length, ownArgument(taskTokens, i));
+        }
+
+        boolean isTraceEnabled = this.isTraceEnabled;
+        this.isTraceEnabled = false;
+        ArrayList<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < workerAddresses.length; i++) {
+            int worker = i;
+            workers.add(new Thread(() -> coordinateWorker(workerAddresses[worker], worker, workQueues, splitSize)));
+            workers.get(i).start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        this.isTraceEnabled = isTraceEnabled;
+
+        for (ArrayDeque<AnonComb> deque : workQueues.deques) {
+            for (AnonComb task : deque)
+                interpret(task.tokensInBrackets);
+        }
+        collapseSoloCombs(taskTokens);
+        System.out.println("Distributed " + workQueues.numberOfTasks + " tasks to " + workerAddresses.length +
+                " workers, " + workQueues.numberOfStolenTasks + " stolen");
+    }
+
+    private void coordinateWorker(String workerAddress, int worker, WorkQueues workQueues, int splitSize) {
+        AnonComb task = null;
+        int lease = 0;
+        String[] hostAndPort = workerAddress.split(":");
+
+        try (Socket socket = connectToWorker(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                synchronized (workQueues) {
+                    while ((task = workQueues.takeTask(worker)) != null || workQueues.numberOfRunningTasks > 0) {
+                        if (task != null) {
+                            lease = infOrExpOrQuadComp == 0 ? 0 : Math.min(NUMBER_OF_LEASED_INTERPRETATIONS,
+                                    maxNumberOfInterpretations - numberOfInterpretations - workQueues.numberOfLeasedInterpretations);
+                            if (infOrExpOrQuadComp == 0 || lease > 0)
+                                break;
+                            workQueues.deques.get(worker).addFirst(task);
+                            if (workQueues.numberOfLeasedInterpretations == 0) {
+                                isBudgetExhausted = true;
+                                task = null;
+                                break;
+                            }
+                        }
+                        workQueues.wait();
+                    }
+                    if (task == null) {
+                        workQueues.notifyAll();
+                        return;
+                    }
+                    workQueues.numberOfRunningTasks++;
+                    workQueues.numberOfLeasedInterpretations += lease;
+                }
+
+                byte[] term = TermCodec.encode(task.tokensInBrackets);
+                out.writeInt(lease);
+                out.writeInt(splitSize);
+                out.writeInt(term.length);
+                out.write(term);
+                out.flush();
+
+                int numberOfWorkerInterpretations = in.readInt();
+                boolean isWorkerBudgetExhausted = in.readBoolean();
+                byte[] result = new byte[in.readInt()];
+                in.readFully(result);
+                int[] splitIndexes = new int[in.readInt()];
+                for (int i = 0; i < splitIndexes.length; i++)
+                    splitIndexes[i] = in.readInt();
+
+                //a malformed answer throws here, before the task is changed
+                ArrayList<Token> resultTokens = TermCodec.decode(result, task.coords.starting);
+                ArrayList<AnonComb> splitTasks = new ArrayList<>();
+                for (int index : splitIndexes)
+                    splitTasks.add((AnonComb) resultTokens.get(index));
+                task.tokensInBrackets.clear();
+                task.tokensInBrackets.addAll(resultTokens);
+
+                synchronized (workQueues) {
+                    numberOfInterpretations += numberOfWorkerInterpretations;
+                    workQueues.numberOfLeasedInterpretations -= lease;
+                    workQueues.numberOfRunningTasks--;
+                    if (isWorkerBudgetExhausted)
+                        workQueues.deques.get(worker).addLast(task);
+                    for (AnonComb splitTask : splitTasks)
+                        workQueues.addTask(worker, splitTask);
+                    task = null;
+                    workQueues.notifyAll();
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            System.out.println("Worker " + workerAddress + " failed: " + e);
+            synchronized (workQueues) {
+                if (task != null) {
+                    workQueues.numberOfRunningTasks--;
+                    workQueues.numberOfLeasedInterpretations -= lease;
+                    workQueues.deques.get(worker).addLast(task);
+                }
+                workQueues.notifyAll();
+            }
+        }
+    }
+
+    private static Socket connectToWorker(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), WORKER_TIMEOUT_MILLIS);
+            socket.setSoTimeout(WORKER_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    //Worker of interpretDistributed, tasks are read until the coordinator closes the connection.
+    //Task = lease, split size, term; answer = interpretations, budget flag, term, indexes of arguments left to split.
+    static void serveWorker(int port) throws IOException, CloneNotSupportedException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Worker listening on port " + port);
+            while (true) {
+                try (Socket socket = serverSocket.accept();
+                     DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                    while (true)
+                        interpretWorkerTask(in, out);
+                } catch (EOFException e) {
+                    System.out.println("Coordinator disconnected");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void interpretWorkerTask(DataInputStream in, DataOutputStream out) throws IOException, CloneNotSupportedException {
+        int lease = in.readInt();
+        int splitSize = in.readInt();
+        byte[] term = new byte[in.readInt()];
+        in.readFully(term);
+
+        CombinatorialLogicInterpreter worker = new CombinatorialLogicInterpreter();
+        worker.isTraceEnabled = false;
+        worker.infOrExpOrQuadComp = lease > 0 ? 1 : 0;
+        worker.maxNumberOfInterpretations = lease;
+        worker.taskTokens.addAll(TermCodec.decode(term, new Position("")));
+        ArrayList<Integer> splitIndexes = worker.interpretSplitting(worker.taskTokens, splitSize);
+
+        byte[] result = TermCodec.encode(worker.taskTokens);
+        out.writeInt(worker.numberOfInterpretations);
+        out.writeBoolean(worker.isBudgetExhausted);
+        out.writeInt(result.length);
+        out.write(result);
+        out.writeInt(splitIndexes.size());
+        for (int index : splitIndexes)
+            out.writeInt(index);
+        out.flush();
+    }
+
+    private ArrayList<Integer> interpretSplitting(ArrayList<Token> currentTokens, int splitSize) throws CloneNotSupportedException {
+        ArrayList<Integer> splitIndexes = new ArrayList<>();
+        boolean isInterpreted;
+        do {
+            isInterpreted = interpretHead(currentTokens);
+        } while (isInterpreted);
+
+        TermCodec.hash(currentTokens);
+        for (int i = 0; i < currentTokens.size() && !isBudgetExhausted; i++) {
+            if (currentTokens.get(i).tag == DomainTag.USER_COMBINATOR) {
+                AnonComb argument = (AnonComb) currentTokens.get(i);
+                if (argument.size >= splitSize) {
+                    splitIndexes.add(i);
+                } else {
+                    interpret(argument.tokensInBrackets);
+                    getSoloCombsFromBrackets(argument, currentTokens, i);
+                }
+            }
+        }
+
+        if (isBudgetExhausted)
+            splitIndexes.clear();
+        return splitIndexes;
+    }
+
+    //User combinators left when the budget ran out are expanded, as interpret expands every argument it reaches.
+    private void collapseSoloCombs(ArrayList<Token> currentTokens) throws CloneNotSupportedException {
+        ArrayDeque<ArrayList<Token>> brackets = new ArrayDeque<>();
+        brackets.push(currentTokens);
+        while (!brackets.isEmpty()) {
+            ArrayList<Token> tokensInBrackets = brackets.pop();
+            for (int i = 0; i < tokensInBrackets.size(); i++) {
+                while (tokensInBrackets.get(i).tag == DomainTag.USER_COMBINATOR) {
+                    AnonComb argument = ownArgument(tokensInBrackets, i);
+                    if (!getSoloCombsFromBrackets(argument, tokensInBrackets, i)) {
+                        brackets.push(argument.tokensInBrackets);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    //The program is kept as sections of its text. A change re-scans and re-parses only the sections it touches,
+    //the task is interpreted again only if it, the complexity or a rule it uses has changed.
+    //Updates run on their own thread, so a task that does not terminate is cancelled by the next change.
+    private void watch(String fileName) throws IOException, InterruptedException {
+        isWatching = true;
+        isTraceEnabled = false;
+        Path path = Paths.get(fileName).toAbsolutePath();
+        WatchedProgram program = new WatchedProgram();
+        ExecutorService updater = newDaemonExecutor();
+        Future<Void> runningUpdate = null;
+        String updatedText = null;
+        try (WatchService watchService = path.getFileSystem().newWatchService()) {
+            path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            boolean isChanged = true;
+            while (true) {
+                if (isChanged) {
+                    try {
+                        String text = new String(Files.readAllBytes(path));
+                        if (runningUpdate == null || runningUpdate.isDone() || !text.equals(updatedText)) {
+                            if (runningUpdate != null) {
+                                cancel();
+                                try {
+                                    runningUpdate.get();
+                                } catch (ExecutionException e) {
+                                    System.out.println("Update failed: " + e.getCause() + "\nWaiting for the next change");
+                                }
+                                isCancelled = false;
+                            }
+                            if (program.result == null || !text.equals(program.text)) {
+                                updatedText = text;
+                                runningUpdate = updater.submit(() -> {
+                                    update(program, text);
+                                    return null;
+                                });
+                            }
+                        }
+                    } catch (NoSuchFileException e) {
+                        System.out.println("Waiting for " + path);
+                    }
+                }
+                //Editors often truncate the file and write it in several steps, so events are collected until a pause.
+                isChanged = false;
+                for (WatchKey key = watchService.take(); key != null; key = watchService.poll(WATCH_PAUSE, TimeUnit.MILLISECONDS)) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (path.getFileName().equals(event.context()))
+                            isChanged = true;
+                    }
+                    key.reset();
+                }
+            }
+        }
+    }
+
+    private void update(WatchedProgram program, String text) throws InterruptedException, CloneNotSupportedException {
+        long start = System.nanoTime();
+        HashMap<String, AbstractMap.SimpleEntry<AnonComb, Integer>> previousUserCombs = new HashMap<>(userCombs);
+        int previousComp = infOrExpOrQuadComp;
+        Compiler compiler = new Compiler();
+        try {
+            ArrayList<Section> sections = rescanSections(program, text, compiler);
+            if (sections == null) {
+                //A change can also move sections, e.g. put a rule after the task, which only the whole text shows.
+                compiler = new Compiler();
+                sections = parseSections(text, 0, text.length(), compiler);
+            }
+            compiler.outputMessages();
+
+            userCombs.clear();
+            int numberOfRescannedSections = 0;
+            for (Section section : sections) {
+                if (section.tag == DomainTag.USER_COMBINATOR)
+                    userCombs.put(section.userCombName, section.userComb);
+                if (section.isRescanned)
+                    numberOfRescannedSections++;
+                section.isRescanned = false;
+            }
+            TreeSet<String> changedUserCombNames = new TreeSet<>();
+            for (String userCombName : userCombs.keySet()) {
+                AbstractMap.SimpleEntry<AnonComb, Integer> previousUserComb = previousUserCombs.get(userCombName);
+                AbstractMap.SimpleEntry<AnonComb, Integer> userComb = userCombs.get(userCombName);
+                if (previousUserComb == null || previousUserComb != userComb &&
+                        !printTokens(previousUserComb.getKey().tokensInBrackets).equals(printTokens(userComb.getKey().tokensInBrackets)))
+                    changedUserCombNames.add(userCombName);
+            }
+            for (String userCombName : previousUserCombs.keySet()) {
+                if (!userCombs.containsKey(userCombName))
+                    changedUserCombNames.add(userCombName);
+            }
+
+            Section task = sections.get(sections.size() - 1);
+            Section previousTask = program.sections.isEmpty() ? null : program.sections.get(program.sections.size() - 1);
+            boolean isTaskChanged = program.result == null || previousComp != infOrExpOrQuadComp ||
+                    !task.lexemes.equals(previousTask.lexemes);
+            for (String userCombName : changedUserCombNames) {
+                if (task.userCombNames.contains(userCombName))
+                    isTaskChanged = true;
+            }
+
+            System.out.println("\nRe-scanned " + numberOfRescannedSections + " of " + sections.size() + " sections" +
+                    (changedUserCombNames.isEmpty() ? "" : ", changed rules: " + String.join(", ", changedUserCombNames)));
+            String result = isTaskChanged ? interpretTask(task) : program.result;
+            if (isCancelled) {
+                System.out.println("Cancelled by the next change");
+                restoreUserCombs(previousUserCombs, previousComp);
+                return;
+            }
+            System.out.println(isTaskChanged ? result : "Task is unchanged, result from memory:\n" + result);
+            System.out.println("Updated in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            program.text = text;
+            program.sections = sections;
+            program.result = result;
+        } catch (IllegalStateException e) {
+            compiler.outputMessages();
+            System.out.println(e.getMessage() + "\nWaiting for the next change");
+            restoreUserCombs(previousUserCombs, previousComp);
+        }
+    }
+
+    private void restoreUserCombs(HashMap<String, AbstractMap.SimpleEntry<AnonComb, Integer>> previousUserCombs, int previousComp) {
+        userCombs.clear();
+        userCombs.putAll(previousUserCombs);
+        infOrExpOrQuadComp = previousComp;
+    }
+
+    //Only the sections that overlap the text between the common prefix and suffix of the old and new text,
+    //including the sections touching it, are scanned again. The sections after it are shifted.
+    //Null means the scanned text is not a sequence of rules and the whole text has to be parsed.
+    private ArrayList<Section> rescanSections(WatchedProgram program, String text, Compiler compiler) throws CloneNotSupportedException {
+        String previousText = program.text;
+        ArrayList<Section> previousSections = program.sections;
+        if (previousSections.isEmpty())
+            return parseSections(text, 0, text.length(), compiler);
+
+        int limit = Math.min(previousText.length(), text.length());
+        int prefix = 0;
+        while (prefix < limit && previousText.charAt(prefix) == text.charAt(prefix))
+            prefix++;
+        int suffix = 0;
+        while (suffix < limit - prefix &&
+                previousText.charAt(previousText.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix))
+            suffix++;
+        int shift = text.length() - previousText.length();
+
+        int first = 0;
+        while (first < previousSections.size() - 1 && previousSections.get(first).end < prefix)
+            first++;
+        int last = previousSections.size() - 1;
+        while (last > first && previousSections.get(last).start > previousText.length() - suffix)
+            last--;
+
+        ArrayList<Section> rescannedSections = parseSections(text, previousSections.get(first).start,
+                previousSections.get(last).end + shift, compiler);
+        if (rescannedSections == null)
+            return null;
+        ArrayList<Section> sections = new ArrayList<>(previousSections.subList(0, first));
+        sections.addAll(rescannedSections);
+        for (Section section : previousSections.subList(last + 1, previousSections.size()))
+            sections.add(new Section(section, shift));
+        return sections;
+    }
+
+    //Sections = [Comp] {Rule} ['?' Task ["==" Task]], the complexity only at the start of the text
+    //and the task only at its end. The task is parsed when it is interpreted.
+    private ArrayList<Section> parseSections(String text, int start, int end, Compiler compiler) throws CloneNotSupportedException {
+        Scanner scanner = compiler.getScanner(text, start, end);
+        tokens.clear();
+        Token token;
+        do {
+            token = scanner.nextToken();
+            tokens.add(token);
+        } while (token.tag != DomainTag.END_OF_PROGRAM);
+        numberOfCurrentToken = 1;
+        currentToken = tokens.get(0);
+
+        ArrayList<Section> sections = new ArrayList<>();
+        if (start == 0) {
+            sections.add(new Section(currentToken.tag, currentToken.coords.starting.getIndex()));
+            infOrExpOrQuadComp = 0;
+            parseComp();
+        }
+        while (currentToken.tag == DomainTag.USER_COMBINATOR) {
+            Section section = new Section(DomainTag.USER_COMBINATOR, currentToken.coords.starting.getIndex());
+            section.userCombName = currentToken.attr;
+            parseRule();
+            section.userComb = userCombs.get(section.userCombName);
+            sections.add(section);
+        }
+        if (currentToken.tag == DomainTag.QUESTION_SIGN && end == text.length()) {
+            Section section = new Section(DomainTag.QUESTION_SIGN, currentToken.coords.starting.getIndex());
+            section.tokens = new ArrayList<>(tokens.subList(numberOfCurrentToken, tokens.size()));
+            StringBuilder lexemes = new StringBuilder();
+            section.userCombNames = new TreeSet<>();
+            for (Token taskToken : section.tokens) {
+                lexemes.append(taskToken.tag == DomainTag.USER_COMBINATOR ? taskToken.attr : taskToken.tag.text).append(' ');
+                if (taskToken.tag == DomainTag.USER_COMBINATOR)
+                    section.userCombNames.add(taskToken.attr);
+            }
+            section.lexemes = lexemes.toString();
+            sections.add(section);
+        } else if (end == text.length())
+            endProgram("expected question_sign");
+        else if (currentToken.tag != DomainTag.END_OF_PROGRAM || sections.isEmpty())
+            return null;
+
+        sections.get(0).start = start;
+        for (int i = 0; i < sections.size(); i++)
+            sections.get(i).end = i + 1 < sections.size() ? sections.get(i + 1).start : end;
+        return sections;
+    }
+
+    private String interpretTask(Section task) throws InterruptedException, CloneNotSupportedException {
+        tokens.clear();
+        tokens.addAll(task.tokens);
+        numberOfCurrentToken = 1;
+        currentToken = tokens.get(0);
+        taskTokens.clear();
+        equivalentTaskTokens.clear();
+        numberOfBasicCombsInTask = 0;
+        parseQuery();
+        maxNumberOfInterpretations = getMaxNumberOfInterpretations(numberOfBasicCombsInTask);
+        numberOfInterpretations = 0;
+        isBudgetExhausted = false;
+        if (!equivalentTaskTokens.isEmpty())
+            return queryEquivalence();
+        interpret(taskTokens);
+        return "Number of interpretations: " + numberOfInterpretations + "\nResult: " + printTree(taskTokens);
+    }
+
+    //Both sides are interpreted concurrently and compared after every interpretation.
+    private String queryEquivalence() throws InterruptedException, CloneNotSupportedException {
+        CombinatorialLogicInterpreter left = createEquivalenceSide(taskTokens, maxNumberOfInterpretations);
+        CombinatorialLogicInterpreter right = createEquivalenceSide(equivalentTaskTokens,
+                getMaxNumberOfInterpretations(numberOfBasicCombsInEquivalentTask));
+        EquivalenceQuery query = new EquivalenceQuery(left, right);
+        left.equivalenceQuery = query;
+        right.equivalenceQuery = query;
+
+        if (isTraceEnabled) {
+            System.out.println("Max number of interpretations: " + ((infOrExpOrQuadComp != 0) ?
+                    left.maxNumberOfInterpretations + " and " + right.maxNumberOfInterpretations : "infinity"));
+            System.out.println("Start task: " + printTree(left.taskTokens) + " == " + printTree(right.taskTokens) + "\n");
+        }
+
+        query.addState(left, TermCodec.hash(left.taskTokens), 0);
+        query.addState(right, TermCodec.hash(right.taskTokens), 0);
+        runningEquivalenceQuery = query;
+        if (isCancelled)
+            query.decide("unknown, cancelled");
+        ExecutorService executor = newConcurrentExecutor(2);
+        for (Future<Void> side : executor.invokeAll(List.<Callable<Void>>of(() -> {
+            left.interpret(left.taskTokens);
+            return null;
+        }, () -> {
+            right.interpret(right.taskTokens);
+            return null;
+        }))) {
+            try {
+                side.get();
+            } catch (ExecutionException e) {
+                query.decide("unknown, interpretation failed: " + e.getCause());
+            }
+        }
+        executor.shutdown();
+        runningEquivalenceQuery = null;
+
+        if (left.isBudgetExhausted || right.isBudgetExhausted)
+            query.decide("unknown, budget exhausted");
+        query.decide("not equivalent, normal forms differ");
+
+        return "Number of interpretations: " + left.numberOfInterpretations + " and " + right.numberOfInterpretations +
+                "\nLeft: " + printTree(left.taskTokens) + "\nRight: " + printTree(right.taskTokens) + "\nResult: " + query.verdict;
+    }
+
+    private CombinatorialLogicInterpreter createEquivalenceSide(ArrayList<Token> currentTokens, int maxNumberOfInterpretations) {
+        CombinatorialLogicInterpreter side = new CombinatorialLogicInterpreter();
+        side.isTraceEnabled = false;
+        side.infOrExpOrQuadComp = infOrExpOrQuadComp;
+        side.maxNumberOfInterpretations = maxNumberOfInterpretations;
+        side.taskTokens.addAll(currentTokens);
+        side.startTerm = TermCodec.encode(currentTokens);
+        return side;
+    }
+
+    //The term of an equivalence side after a number of interpretations, interpreted again from its start.
+    byte[] replay(int numberOfInterpretations) throws CloneNotSupportedException {
+        CombinatorialLogicInterpreter replay = new CombinatorialLogicInterpreter();
+        replay.isTraceEnabled = false;
+        replay.infOrExpOrQuadComp = 1;
+        replay.maxNumberOfInterpretations = numberOfInterpretations;
+        replay.taskTokens.addAll(TermCodec.decode(startTerm, new Position("")));
+        this.replay = replay;
+        if (isCancelled)
+            replay.cancel();
+        replay.interpret(replay.taskTokens);
+        return TermCodec.encodeCanonical(replay.taskTokens);
+    }
+
+    private static ExecutorService newConcurrentExecutor(int numberOfThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(numberOfThreads);
+        }
+    }
+
+    static ExecutorService newDaemonExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private String getConfiguration() {
+        return interpretationStrategy.text + (maxNumberOfRuleOptimizationInterpretations > 0 ? ", optimized rules" : "");
     }
 
     public String printTree(ArrayList<Token> currentTokens) {
+        return printTokens(currentTokens);
+    }
+
+    static String printTokens(ArrayList<Token> currentTokens) {
         StringBuilder stringBuilder = new StringBuilder();
+        ArrayDeque<Iterator<Token>> brackets = new ArrayDeque<>();
+        brackets.push(currentTokens.iterator());
+
+        while (!brackets.isEmpty()) {
+            Iterator<Token> tokensInBrackets = brackets.peek();
+            if (!tokensInBrackets.hasNext()) {
+                brackets.pop();
+                if (!brackets.isEmpty())
+                    stringBuilder.append(")");
+                continue;
+            }
 
-        for (Token token : currentTokens) {
-            if (token.tag == DomainTag.USER_COMBINATOR) {
-                stringBuilder.append("(").append(printTree(((AnonComb) token).tokensInBrackets)).append(")");
+            Token token = tokensInBrackets.next();
+            AnonComb bracket = AnonComb.bracketOf(token);
+            if (bracket != null) {
+                stringBuilder.append("(");
+                brackets.push(bracket.tokensInBrackets.iterator());
             } else
                 stringBuilder.append(token.attr);
         }
@@ -619,80 +2478,315 @@ public class CombinatorialLogicInterpreter {
     }
 
     public void interpret(ArrayList<Token> currentTokens) throws CloneNotSupportedException {
-        int numberOfCombs;
+        ArrayDeque<InterpretationFrame> frames = new ArrayDeque<>();
+        InterpretationFrame rootFrame = new InterpretationFrame(currentTokens);
+        if (profiler != null) {
+            rootFrame.stack = Profiler.TASK;
+            profiler.sample(taskTokens, true);
+        }
+        if (!interpretFromCache(rootFrame))
+            frames.push(rootFrame);
+        interpret(frames);
+    }
+
+    private void interpret(ArrayDeque<InterpretationFrame> frames) throws CloneNotSupportedException {
+        while (!frames.isEmpty() && !isCancelled) {
+            if (checkpointer != null && checkpointer.isDue())
+                checkpointer.save(createSnapshot(frames));
+
+            InterpretationFrame frame = frames.peek();
+            if (!frame.isInHeadNormalForm && frame.argument == null) {
+                if (interpretationStrategy == InterpretationStrategy.DUPLICATED_ARGUMENT_FIRST &&
+                        !frame.isDuplicatedArgumentNormalized && frame.tokens.size() > 3 &&
+                        frame.tokens.get(0).tag == DomainTag.S_COMB &&
+                        frame.tokens.get(3).tag == DomainTag.USER_COMBINATOR) {
+                    pushArgument(frames, frame, 3);
+                } else {
+                    frame.isDuplicatedArgumentNormalized = false;
+                    int numberOfPreviousInterpretations = numberOfInterpretations;
+                    Token head = frame.tokens.get(0);
+                    boolean isInterpreted = interpretHead(frame.tokens);
+                    if (!isInterpreted) {
+                        frame.isInHeadNormalForm = true;
+                        if (equivalenceQuery != null && frames.size() == 1 && !isBudgetExhausted)
+                            equivalenceQuery.setHeadNormalForm(this, frame.tokens.get(0).tag, frame.tokens.size() - 1);
+                    } else if (equivalenceQuery != null && numberOfInterpretations > numberOfPreviousInterpretations)
+                        equivalenceQuery.addState(this, hashState(frames), numberOfInterpretations);
+                    if (profiler != null && numberOfInterpretations > numberOfPreviousInterpretations) {
+                        profiler.addInterpretations(frame.stack, Profiler.originOf(head), 1);
+                        profiler.sample(taskTokens, false);
+                    }
+                    if (history != null && isInterpreted) {
+                        history.recordHead(frame.bracket, frame.tokens, head, numberOfInterpretations);
+                        if (numberOfInterpretations > numberOfPreviousInterpretations)
+                            history.addStep(frame.bracket, false);
+                    }
+                }
+            } else if (frame.argument != null) {
+                if (getSoloCombsFromBrackets(frame.argument, frame.tokens, frame.index) && history != null)
+                    history.record(frame.bracket, frame.tokens, numberOfInterpretations, frame.index, 1);
+                frame.argument = null;
+                if (frame.isInHeadNormalForm) {
+                    frame.index++;
+                } else {
+                    frame.index = 0;
+                    frame.isDuplicatedArgumentNormalized = true;
+                }
+            } else if (frame.index < frame.tokens.size()) {
+                if (frame.tokens.get(frame.index).tag == DomainTag.USER_COMBINATOR)
+                    pushArgument(frames, frame, frame.index);
+                else
+                    frame.index++;
+            } else
+                addToCache(frames.pop());
+        }
+        isInterrupted = !frames.isEmpty();
+    }
+
+    //Snapshot = header, frames from the task to the innermost argument, task encoded by TermCodec
+    private byte[] createSnapshot(ArrayDeque<InterpretationFrame> frames) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(seq_lexemes.toString().hashCode());
+            out.writeByte(interpretationStrategy.ordinal());
+            out.writeInt(numberOfInterpretations);
+            out.writeBoolean(isBudgetExhausted);
+            out.writeInt(frames.size());
+            for (Iterator<InterpretationFrame> it = frames.descendingIterator(); it.hasNext(); ) {
+                InterpretationFrame frame = it.next();
+                out.writeInt(frame.index);
+                out.writeBoolean(frame.isInHeadNormalForm);
+                out.writeBoolean(frame.isDuplicatedArgumentNormalized);
+                out.writeBoolean(frame.argument != null);
+            }
+            byte[] term = TermCodec.encode(taskTokens);
+            out.writeInt(term.length);
+            out.write(term);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
 
-        while (true) {
-            numberOfCombs = currentTokens.size();
+    private ArrayDeque<InterpretationFrame> restoreSnapshot(byte[] snapshot) {
+        ArrayDeque<InterpretationFrame> frames = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != seq_lexemes.toString().hashCode()) {
+                System.out.println("ERROR: checkpoint was made for another program");
+                System.exit(1);
+            }
+            interpretationStrategy = InterpretationStrategy.values()[in.readByte()];
+            numberOfInterpretations = in.readInt();
+            isBudgetExhausted = in.readBoolean();
+
+            int numberOfFrames = in.readInt();
+            int[] indexes = new int[numberOfFrames];
+            boolean[][] flags = new boolean[numberOfFrames][3];
+            for (int i = 0; i < numberOfFrames; i++) {
+                indexes[i] = in.readInt();
+                for (int j = 0; j < 3; j++)
+                    flags[i][j] = in.readBoolean();
+            }
+
+            byte[] term = new byte[in.readInt()];
+            in.readFully(term);
+            Position position = taskTokens.get(0).coords.starting;
+            taskTokens.clear();
+            taskTokens.addAll(TermCodec.decode(term, position));
+
+            ArrayList<Token> currentTokens = taskTokens;
+            AnonComb bracket = null;
+            for (int i = 0; i < numberOfFrames; i++) {
+                InterpretationFrame frame = new InterpretationFrame(currentTokens);
+                frame.bracket = bracket;
+                frame.index = indexes[i];
+                frame.isInHeadNormalForm = flags[i][0];
+                frame.isDuplicatedArgumentNormalized = flags[i][1];
+                if (flags[i][2]) {
+                    frame.argument = (AnonComb) currentTokens.get(frame.index);
+                    currentTokens = frame.argument.tokensInBrackets;
+                    bracket = frame.argument;
+                }
+                frames.push(frame);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return frames;
+    }
+
+    //Only the lists of the frames change between two states, so only their hashes are computed again.
+    private long hashState(ArrayDeque<InterpretationFrame> frames) {
+        for (InterpretationFrame frame : frames) {
+            if (frame.argument != null)
+                frame.argument.isHashed = false;
+        }
+        return TermCodec.hash(taskTokens);
+    }
+
+    void cancel() {
+        isCancelled = true;
+        if (replay != null)
+            replay.cancel();
+        EquivalenceQuery query = runningEquivalenceQuery;
+        if (query != null)
+            query.decide("unknown, cancelled");
+    }
+
+    private void pushArgument(ArrayDeque<InterpretationFrame> frames, InterpretationFrame frame, int index) {
+        frame.index = index;
+        Token token = frame.tokens.get(index);
+        frame.argument = ownArgument(frame.tokens, index);
+        InterpretationFrame argumentFrame = new InterpretationFrame(frame.argument.tokensInBrackets);
+        argumentFrame.bracket = frame.argument;
+        if (history != null) {
+            if (frame.argument != token)
+                history.record(frame.bracket, frame.tokens, numberOfInterpretations, index, 1);
+            history.prepare(frame.argument);
+        }
+        if (profiler != null)
+            argumentFrame.stack = Profiler.push(frame.stack == null ? Profiler.TASK : frame.stack,
+                    Profiler.originOf(frame.argument));
+        if (!interpretFromCache(argumentFrame))
+            frames.push(argumentFrame);
+        frame.argument.isHashed = false;
+    }
+
+    //A user combinator is expanded to a copy of its body when it is reached as an argument.
+    private AnonComb ownArgument(ArrayList<Token> currentTokens, int index) {
+        AnonComb argument = AnonComb.bracketOf(currentTokens.get(index)).own();
+        if (profiler != null && argument != currentTokens.get(index))
+            profiler.addAllocatedNodes(Profiler.originOf(argument), 1);
+        currentTokens.set(index, argument);
+        return argument;
+    }
+
+    private boolean interpretFromCache(InterpretationFrame frame) {
+        if (normalFormCache == null)
+            return false;
+
+        frame.hash = TermCodec.hash(frame.tokens);
+        if (TermCodec.size(frame.tokens) > normalFormCache.maxKeySize())
+            return false;
+        frame.normalFormKey = TermCodec.encode(frame.tokens);
+        frame.numberOfInterpretationsAtStart = numberOfInterpretations;
+
+        AbstractMap.SimpleEntry<byte[], Integer> normalForm = normalFormCache.get(frame.hash, frame.normalFormKey);
+        if (normalForm == null || (infOrExpOrQuadComp != 0 &&
+                numberOfInterpretations + normalForm.getValue() > maxNumberOfInterpretations))
+            return false;
+
+        if (isTraceEnabled)
+            System.out.print(numberOfInterpretations + 1 + "-" + (numberOfInterpretations + normalForm.getValue()) +
+                    ") " + printTree(taskTokens));
+        Position position = frame.tokens.get(0).coords.starting;
+        frame.tokens.clear();
+        frame.tokens.addAll(TermCodec.decode(normalForm.getKey(), position));
+
+        numberOfInterpretations += normalForm.getValue();
+        normalFormCache.addHit(normalForm.getValue());
+        if (profiler != null)
+            profiler.addInterpretations(frame.stack, Profiler.CACHE, normalForm.getValue());
+        if (history != null) {
+            history.recordAll(frame.bracket, frame.tokens, numberOfInterpretations);
+            for (int i = 0; i < normalForm.getValue(); i++)
+                history.addStep(frame.bracket, true);
+        }
+        if (isTraceEnabled)
+            System.out.println(" -> " + printTree(taskTokens) + " (cached)");
+        return true;
+    }
+
+    private void addToCache(InterpretationFrame frame) {
+        if (frame.normalFormKey != null && !isBudgetExhausted &&
+                numberOfInterpretations > frame.numberOfInterpretationsAtStart)
+            normalFormCache.put(frame.hash, frame.normalFormKey, TermCodec.encode(frame.tokens),
+                    numberOfInterpretations - frame.numberOfInterpretationsAtStart);
+    }
 
-            Token firstComb = currentTokens.get(0);
-            if (firstComb.tag == DomainTag.I_COMB) {
-                if (numberOfCombs > 1 && (infOrExpOrQuadComp == 0 ||
-                        numberOfInterpretations < maxNumberOfInterpretations)) {
+    private boolean interpretHead(ArrayList<Token> currentTokens) throws CloneNotSupportedException {
+        int numberOfCombs = currentTokens.size();
+
+        Token firstComb = currentTokens.get(0);
+        if (firstComb.tag == DomainTag.I_COMB) {
+            if (canInterpret(numberOfCombs, 1)) {
+                if (isTraceEnabled)
                     System.out.print(numberOfInterpretations + 1 + ") " + printTree(taskTokens));
-                    currentTokens.remove(0);
+                currentTokens.remove(0);
 
-                    numberOfInterpretations++;
+                numberOfInterpretations++;
+                if (isTraceEnabled)
                     System.out.println(" -> " + printTree(taskTokens));
-                } else
-                    break;
-            } else if (firstComb.tag == DomainTag.K_COMB) {
-                if (numberOfCombs > 2 && (infOrExpOrQuadComp == 0 ||
-                        numberOfInterpretations < maxNumberOfInterpretations)) {
+            } else
+                return false;
+        } else if (firstComb.tag == DomainTag.K_COMB) {
+            if (canInterpret(numberOfCombs, 2)) {
+                if (isTraceEnabled)
                     System.out.print(numberOfInterpretations + 1 + ") " + printTree(taskTokens));
-                    currentTokens.remove(2);
-                    currentTokens.remove(0);
+                currentTokens.remove(2);
+                currentTokens.remove(0);
 
-                    numberOfInterpretations++;
+                numberOfInterpretations++;
+                if (isTraceEnabled)
                     System.out.println(" -> " + printTree(taskTokens));
-                } else
-                    break;
-            } else if (firstComb.tag == DomainTag.S_COMB) {
-                if (numberOfCombs > 3 && (infOrExpOrQuadComp == 0 ||
-                        numberOfInterpretations < maxNumberOfInterpretations)) {
+            } else
+                return false;
+        } else if (firstComb.tag == DomainTag.S_COMB) {
+            if (canInterpret(numberOfCombs, 3)) {
+                if (isTraceEnabled)
                     System.out.print(numberOfInterpretations + 1 + ") " + printTree(taskTokens));
-                    Token tempToken2 = currentTokens.get(2);
-                    Token tempToken3 = currentTokens.get(3);
-
-                    AnonComb tempAnonComb = new AnonComb(tempToken2.coords.starting);
-                    tempAnonComb.addToken(tempToken2);
-                    tempAnonComb.addToken(tempToken3.clone());
-
-                    currentTokens.set(2, tempToken3);
-                    currentTokens.set(3, tempAnonComb);
-                    currentTokens.remove(0);
-
-                    numberOfInterpretations++;
+                Token tempToken2 = currentTokens.get(2);
+                Token tempToken3 = currentTokens.get(3);
+
+                AnonComb tempAnonComb = new AnonComb(tempToken2.coords.starting);
+                tempAnonComb.origin = firstComb.origin;
+                tempAnonComb.addToken(tempToken2);
+                tempAnonComb.addToken(tempToken3.clone());
+                if (profiler != null)
+                    profiler.addAllocatedNodes(Profiler.originOf(firstComb), 1 + Profiler.countCopiedNodes(tempToken3));
+
+                currentTokens.set(2, tempToken3);
+                currentTokens.set(3, tempAnonComb);
+                currentTokens.remove(0);
+
+                numberOfInterpretations++;
+                if (isTraceEnabled)
                     System.out.println(" -> " + printTree(taskTokens));
-                } else
-                    break;
-            } else {
-                AnonComb token = (AnonComb) currentTokens.remove(0);
-                ArrayList<Token> combsList = new ArrayList<>(token.tokensInBrackets); // interpret(token.tokensInBrackets);
-                combsList.addAll(currentTokens);
-                currentTokens.clear();
-                currentTokens.addAll(combsList);
-            }
+            } else
+                return false;
+        } else {
+            AnonComb token = AnonComb.bracketOf(currentTokens.remove(0));
+            ArrayList<Token> combsList = new ArrayList<>(token.tokensInBrackets);
+            combsList.addAll(currentTokens);
+            currentTokens.clear();
+            currentTokens.addAll(combsList);
         }
 
-        for (int i = 0; i < currentTokens.size(); i++) {
-            Token token = currentTokens.get(i);
-            if (token.tag == DomainTag.USER_COMBINATOR) {
-                AnonComb anonComb = (AnonComb) token;
-                interpret(anonComb.tokensInBrackets);
-                getSoloCombsFromBrackets(anonComb, currentTokens, i);
-            }
+        return true;
+    }
+
+    private boolean canInterpret(int numberOfCombs, int numberOfArguments) {
+        if (numberOfCombs <= numberOfArguments)
+            return false;
+        if (infOrExpOrQuadComp != 0 && numberOfInterpretations >= maxNumberOfInterpretations) {
+            isBudgetExhausted = true;
+            return false;
         }
+        return true;
     }
 
-    private void getSoloCombsFromBrackets(AnonComb anonComb, ArrayList<Token> setInTokens, int i) throws CloneNotSupportedException {
-        if (anonComb.tokensInBrackets.size() == 1) {
+    private boolean getSoloCombsFromBrackets(AnonComb anonComb, ArrayList<Token> setInTokens, int i) throws CloneNotSupportedException {
+        while (anonComb.tokensInBrackets.size() == 1) {
             Token childToken = anonComb.tokensInBrackets.get(0);
-            if (childToken.tag == DomainTag.USER_COMBINATOR) {
-                getSoloCombsFromBrackets((AnonComb) childToken, setInTokens, i);
+            if (childToken instanceof AnonComb) {
+                anonComb = (AnonComb) childToken;
             } else {
                 setInTokens.set(i, childToken.clone());
+                return true;
             }
         }
+        return false;
     }
 
     private void nextTok() {
@@ -704,27 +2798,161 @@ public class CombinatorialLogicInterpreter {
         numberOfCurrentToken = 1;
         currentToken = tokens.get(0);
         parseProg();
+        maxNumberOfInterpretations = getMaxNumberOfInterpretations(numberOfBasicCombsInTask);
+    }
+
+    private int getMaxNumberOfInterpretations(int numberOfBasicCombs) {
         if (infOrExpOrQuadComp == 1)
-            maxNumberOfInterpretations = (int) Math.pow(2, numberOfBasicCombsInTask + 1);
+            return (int) Math.pow(2, numberOfBasicCombs + 1);
         else if (infOrExpOrQuadComp == 2)
-            maxNumberOfInterpretations = (numberOfBasicCombsInTask + 1) * (numberOfBasicCombsInTask + 1);
+            return (numberOfBasicCombs + 1) * (numberOfBasicCombs + 1);
+        return 0;
     }
 
-    //Prog = Comp {Rule} '?' Task
+    //Prog = Comp {Rule} '?' Task ["==" Task]
     private void parseProg() throws CloneNotSupportedException {
         parseComp();
         while (currentToken.tag == DomainTag.USER_COMBINATOR) {
             parseRule();
         }
+        if (maxNumberOfRuleOptimizationInterpretations > 0 && !userCombs.isEmpty())
+            optimizeUserCombs();
         if (currentToken.tag == DomainTag.QUESTION_SIGN) {
             nextTok();
-            parseTask();
-            if (currentToken.tag != DomainTag.END_OF_PROGRAM)
-                endProgram("expected end_of_program");
+            parseQuery();
         } else
             endProgram("expected question_sign");
     }
 
+    private void parseQuery() throws CloneNotSupportedException {
+        parseTask(taskTokens);
+        if (currentToken.tag == DomainTag.EQUIVALENCE_SIGN) {
+            nextTok();
+            int numberOfBasicCombs = numberOfBasicCombsInTask;
+            numberOfBasicCombsInTask = 0;
+            parseTask(equivalentTaskTokens);
+            numberOfBasicCombsInEquivalentTask = numberOfBasicCombsInTask;
+            numberOfBasicCombsInTask = numberOfBasicCombs;
+        }
+        if (currentToken.tag != DomainTag.END_OF_PROGRAM)
+            endProgram("expected end_of_program");
+    }
+
+    //Rule bodies are normalised with a bounded number of interpretations and rewritten with
+    //S(Kx)(Ky) -> K(xy), S(Kx)I -> x and SKx -> I, which only agree with the original bodies once applied.
+    //Budgets of exp and quad still count the combinators of the original bodies.
+    private void optimizeUserCombs() throws CloneNotSupportedException {
+        int sizeBefore = 0;
+        int sizeAfter = 0;
+        int numberOfPrecomputedInterpretations = 0;
+        int numberOfRewrites = 0;
+
+        for (String userCombName : new TreeSet<>(userCombs.keySet())) {
+            AbstractMap.SimpleEntry<AnonComb, Integer> entry = userCombs.get(userCombName);
+            AnonComb userComb = entry.getKey();
+
+            CombinatorialLogicInterpreter optimizer = new CombinatorialLogicInterpreter();
+            optimizer.isTraceEnabled = false;
+            optimizer.infOrExpOrQuadComp = 1;
+            optimizer.maxNumberOfInterpretations = maxNumberOfRuleOptimizationInterpretations;
+            optimizer.taskTokens.addAll(new AnonComb(userComb).tokensInBrackets);
+
+            int numberOfRuleRewrites = 0;
+            int numberOfCurrentRewrites;
+            do {
+                optimizer.interpret(optimizer.taskTokens);
+                numberOfCurrentRewrites = optimizer.isBudgetExhausted ? 0 : rewriteUserComb(optimizer.taskTokens);
+                numberOfRuleRewrites += numberOfCurrentRewrites;
+            } while (numberOfCurrentRewrites > 0);
+
+            int size = TermCodec.encode(userComb.tokensInBrackets).length;
+            sizeBefore += size;
+            if (optimizer.isBudgetExhausted) {
+                sizeAfter += size;
+                if (isTraceEnabled)
+                    System.out.println(userCombName + ": not optimized, no normal form within " +
+                            maxNumberOfRuleOptimizationInterpretations + " interpretations");
+                continue;
+            }
+
+            AnonComb optimizedUserComb = new AnonComb(userComb.coords.starting);
+            for (Token token : optimizer.taskTokens) {
+                optimizedUserComb.addToken(token);
+            }
+            optimizedUserComb.setOrigin(userCombName);
+            optimizedUserComb.share();
+            userCombs.put(userCombName, new AbstractMap.SimpleEntry<>(optimizedUserComb, entry.getValue()));
+
+            int optimizedSize = TermCodec.encode(optimizedUserComb.tokensInBrackets).length;
+            sizeAfter += optimizedSize;
+            numberOfPrecomputedInterpretations += optimizer.numberOfInterpretations;
+            numberOfRewrites += numberOfRuleRewrites;
+            if (isTraceEnabled)
+                System.out.println(userCombName + ": size " + size + " -> " + optimizedSize + ", " +
+                        optimizer.numberOfInterpretations + " interpretations and " + numberOfRuleRewrites +
+                        " rewrites done once instead of at every use");
+        }
+
+        if (isTraceEnabled)
+            System.out.println("Optimized user combinators: size " + sizeBefore + " -> " + sizeAfter + ", " +
+                    numberOfPrecomputedInterpretations + " interpretations and " + numberOfRewrites + " rewrites precomputed\n");
+    }
+
+    private int rewriteUserComb(ArrayList<Token> currentTokens) {
+        ArrayList<ArrayList<Token>> brackets = new ArrayList<>();
+        brackets.add(currentTokens);
+        for (int i = 0; i < brackets.size(); i++) {
+            for (Token token : brackets.get(i)) {
+                if (token.tag == DomainTag.USER_COMBINATOR)
+                    brackets.add(((AnonComb) token).tokensInBrackets);
+            }
+        }
+
+        int numberOfRewrites = 0;
+        for (int i = brackets.size() - 1; i >= 0; i--) {
+            ArrayList<Token> tokensInBrackets = brackets.get(i);
+            while (tokensInBrackets.size() > 2 && tokensInBrackets.get(0).tag == DomainTag.S_COMB) {
+                Token secondComb = tokensInBrackets.get(1);
+                Token thirdComb = tokensInBrackets.get(2);
+                Token x = getKArgument(secondComb);
+
+                if (secondComb.tag == DomainTag.K_COMB) {
+                    tokensInBrackets.subList(0, 3).clear();
+                    tokensInBrackets.add(0, new ICombToken(secondComb.coords.starting, secondComb.coords.following));
+                } else if (x != null && thirdComb.tag == DomainTag.I_COMB) {
+                    tokensInBrackets.subList(0, 3).clear();
+                    tokensInBrackets.addAll(0, x.tag == DomainTag.USER_COMBINATOR ?
+                            ((AnonComb) x).tokensInBrackets : List.of(x));
+                } else if (x != null && getKArgument(thirdComb) != null) {
+                    AnonComb application = new AnonComb(x.coords.starting);
+                    if (x.tag == DomainTag.USER_COMBINATOR) {
+                        for (Token token : ((AnonComb) x).tokensInBrackets)
+                            application.addToken(token);
+                    } else
+                        application.addToken(x);
+                    application.addToken(getKArgument(thirdComb));
+
+                    tokensInBrackets.subList(1, 3).clear();
+                    tokensInBrackets.set(0, ((AnonComb) secondComb).tokensInBrackets.get(0));
+                    tokensInBrackets.add(1, application);
+                } else
+                    break;
+                numberOfRewrites++;
+            }
+        }
+
+        return numberOfRewrites;
+    }
+
+    //x for a bracketed (Kx), null otherwise
+    private Token getKArgument(Token token) {
+        if (token.tag != DomainTag.USER_COMBINATOR)
+            return null;
+        ArrayList<Token> tokensInBrackets = ((AnonComb) token).tokensInBrackets;
+        return tokensInBrackets.size() == 2 && tokensInBrackets.get(0).tag == DomainTag.K_COMB ?
+                tokensInBrackets.get(1) : null;
+    }
+
     //Comp = "inf" | "exp" | "quad"
     private void parseComp() {
         if (currentToken.tag == DomainTag.INFINITY_COMP || currentToken.tag == DomainTag.EXPONENT_COMP ||
@@ -760,6 +2988,8 @@ public class CombinatorialLogicInterpreter {
                     anonComb.addToken(comb);
                 }
 
+                anonComb.setOrigin(userCombName);
+                anonComb.share();
                 userCombs.put(userCombName, new AbstractMap.SimpleEntry<>(anonComb, numberOfBasicCombsInUserComb));
             } else
                 endProgram("expected equal_sign");
@@ -784,29 +3014,7 @@ public class CombinatorialLogicInterpreter {
 
     //BasicCombsInBrackets = '(' BasicCombsInAndOutBrackets {BasicCombsInAndOutBrackets} ')'
     private Token parseBasicCombsInBrackets() throws CloneNotSupportedException {
-        AnonComb anonComb = new AnonComb(currentToken.coords.starting);
-        Token comb;
-
-        if (currentToken.tag == DomainTag.LEFT_BRACKET) {
-            nextTok();
-
-            comb = parseBasicCombsInAndOutBrackets();
-            anonComb.addToken(comb);
-
-            while (currentToken.tag == DomainTag.LEFT_BRACKET || currentToken.tag == DomainTag.K_COMB ||
-                    currentToken.tag == DomainTag.S_COMB || currentToken.tag == DomainTag.I_COMB) {
-                comb = parseBasicCombsInAndOutBrackets();
-                anonComb.addToken(comb);
-            }
-
-            if (currentToken.tag == DomainTag.RIGHT_BRACKET) {
-                nextTok();
-            } else
-                endProgram("expected right_bracket");
-        } else
-            endProgram("expected left_bracket");
-
-        return anonComb;
+        return parseBrackets(false);
     }
 
     //BasicComb = 'K' | 'S' | 'I'
@@ -825,17 +3033,17 @@ public class CombinatorialLogicInterpreter {
     }
 
     //Task = CombsInAndOutBrackets {CombsInAndOutBrackets}
-    private void parseTask() throws CloneNotSupportedException {
+    private void parseTask(ArrayList<Token> currentTokens) throws CloneNotSupportedException {
         Token comb;
 
         comb = parseCombsInAndOutBrackets();
-        taskTokens.add(comb);
+        currentTokens.add(comb);
 
         while (currentToken.tag == DomainTag.LEFT_BRACKET || currentToken.tag == DomainTag.K_COMB ||
                 currentToken.tag == DomainTag.S_COMB || currentToken.tag == DomainTag.I_COMB ||
                 currentToken.tag == DomainTag.USER_COMBINATOR) {
             comb = parseCombsInAndOutBrackets();
-            taskTokens.add(comb);
+            currentTokens.add(comb);
         }
     }
 
@@ -856,32 +3064,43 @@ public class CombinatorialLogicInterpreter {
 
     //CombsInBrackets = '(' CombsInAndOutBrackets {CombsInAndOutBrackets} ')'
     private Token parseCombsInBrackets() throws CloneNotSupportedException {
-        AnonComb anonComb = new AnonComb(currentToken.coords.starting);
-        Token comb;
+        return parseBrackets(true);
+    }
 
-        if (currentToken.tag == DomainTag.LEFT_BRACKET) {
-            nextTok();
+    private Token parseBrackets(boolean isTask) throws CloneNotSupportedException {
+        ArrayDeque<AnonComb> openBrackets = new ArrayDeque<>();
+        AnonComb anonComb = null;
 
-            comb = parseCombsInAndOutBrackets();
-            anonComb.addToken(comb);
+        if (currentToken.tag != DomainTag.LEFT_BRACKET)
+            endProgram("expected left_bracket");
 
-            while (currentToken.tag == DomainTag.LEFT_BRACKET || currentToken.tag == DomainTag.K_COMB ||
-                    currentToken.tag == DomainTag.S_COMB || currentToken.tag == DomainTag.I_COMB ||
-                    currentToken.tag == DomainTag.USER_COMBINATOR) {
-                comb = parseCombsInAndOutBrackets();
-                anonComb.addToken(comb);
-            }
+        do {
+            if (currentToken.tag == DomainTag.LEFT_BRACKET) {
+                openBrackets.push(new AnonComb(currentToken.coords.starting));
+                nextTok();
 
-            if (currentToken.tag == DomainTag.RIGHT_BRACKET) {
+                if (currentToken.tag != DomainTag.LEFT_BRACKET && !isComb(currentToken, isTask))
+                    endProgram(isTask ? "expected left_bracket or one of K, S, I combs or another user_combinator" :
+                            "expected left_bracket or one of K, S, I combs");
+            } else if (isComb(currentToken, isTask)) {
+                openBrackets.peek().addToken(isTask ? parseComb() : parseBasicComb());
+            } else if (currentToken.tag == DomainTag.RIGHT_BRACKET) {
                 nextTok();
+                anonComb = openBrackets.pop();
+                if (!openBrackets.isEmpty())
+                    openBrackets.peek().addToken(anonComb);
             } else
                 endProgram("expected right_bracket");
-        } else
-            endProgram("expected left_bracket");
+        } while (!openBrackets.isEmpty());
 
         return anonComb;
     }
 
+    private boolean isComb(Token token, boolean isUserCombAllowed) {
+        return token.tag == DomainTag.K_COMB || token.tag == DomainTag.S_COMB || token.tag == DomainTag.I_COMB ||
+                (isUserCombAllowed && token.tag == DomainTag.USER_COMBINATOR);
+    }
+
     //Comb = BasicComb | c
     private Token parseComb() throws CloneNotSupportedException {
         Token token = currentToken;
@@ -891,7 +3110,7 @@ public class CombinatorialLogicInterpreter {
             if (currentToken.tag == DomainTag.USER_COMBINATOR) {
                 if (userCombs.containsKey(currentToken.attr)) {
                     AbstractMap.SimpleEntry<AnonComb, Integer> entry = userCombs.get(currentToken.attr);
-                    token = entry.getKey().clone();
+                    token = new UserCombinatorToken((UserCombinatorToken) currentToken, entry.getKey());
                     numberOfBasicCombsInTask += entry.getValue();
                 } else
                     endProgram("unexpected name of user_combinator");
@@ -907,7 +3126,10 @@ public class CombinatorialLogicInterpreter {
     }
 
     private void endProgram(String mes) {
-        System.out.println("ERROR" + currentToken.coords + ": " + mes);
+        String error = "ERROR" + currentToken.coords + ": " + mes;
+        if (isWatching)
+            throw new IllegalStateException(error);
+        System.out.println(error);
         System.exit(1);
     }
 }